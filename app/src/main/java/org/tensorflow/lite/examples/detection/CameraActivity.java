@@ -57,6 +57,7 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import java.nio.ByteBuffer;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.YuvFaceSampler;
 
 public abstract class CameraActivity extends AppCompatActivity
         implements OnImageAvailableListener,
@@ -78,6 +79,8 @@ public abstract class CameraActivity extends AppCompatActivity
   private byte[][] yuvBytes = new byte[3][];
   private int[] rgbBytes = null;
   private int yRowStride;
+  private int uvRowStride;
+  private int uvPixelStride;
   private Runnable postInferenceCallback;
   private Runnable imageConverter;
 
@@ -245,6 +248,26 @@ public abstract class CameraActivity extends AppCompatActivity
     return yuvBytes[0];
   }
 
+  /**
+   * Copies the current YUV frame into the sampler, so that faces can be sampled from it after
+   * {@link #readyForNextImage()} hands the camera buffers back.
+   */
+  protected void fillYuvFrame(final YuvFaceSampler sampler) {
+    if (useCamera2API) {
+      sampler.setFrame(
+              yuvBytes[0],
+              yuvBytes[1],
+              yuvBytes[2],
+              previewWidth,
+              previewHeight,
+              yRowStride,
+              uvRowStride,
+              uvPixelStride);
+    } else {
+      sampler.setFrame(yuvBytes[0], previewWidth, previewHeight);
+    }
+  }
+
   /** Callback for android.hardware.Camera API */
   @Override
   public void onPreviewFrame(final byte[] bytes, final Camera camera) {
@@ -322,8 +345,8 @@ public abstract class CameraActivity extends AppCompatActivity
       final Plane[] planes = image.getPlanes();
       fillBytes(planes, yuvBytes);
       yRowStride = planes[0].getRowStride();
-      final int uvRowStride = planes[1].getRowStride();
-      final int uvPixelStride = planes[1].getPixelStride();
+      uvRowStride = planes[1].getRowStride();
+      uvPixelStride = planes[1].getPixelStride();
 
       imageConverter =
               new Runnable() {
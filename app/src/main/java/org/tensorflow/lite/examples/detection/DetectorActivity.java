@@ -18,6 +18,7 @@ package org.tensorflow.lite.examples.detection;
 
 import android.Manifest;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -57,6 +58,7 @@ import android.widget.Toast;
 import androidx.core.app.ActivityCompat;
 
 import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.tasks.Tasks;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
@@ -71,10 +73,15 @@ import org.tensorflow.lite.examples.detection.customview.OverlayView.DrawCallbac
 import org.tensorflow.lite.examples.detection.env.BorderedText;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.YuvFaceSampler;
+import org.tensorflow.lite.examples.detection.pipeline.DropPolicy;
+import org.tensorflow.lite.examples.detection.pipeline.FrameStage;
 import org.tensorflow.lite.examples.detection.tflite.SimilarityClassifier;
 import org.tensorflow.lite.examples.detection.tflite.TFLiteObjectDetectionAPIModel;
 import org.tensorflow.lite.examples.detection.tracking.MultiBoxTracker;
+import org.tensorflow.lite.examples.detection.tracking.RecognitionScheduler;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -82,6 +89,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 
 /**
  * An activity that uses a TensorFlowMultiBoxDetector and ObjectTracker to detect and then track
@@ -102,9 +110,32 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     private static final int TF_OD_API_INPUT_SIZE = 112;
     private static final boolean TF_OD_API_IS_QUANTIZED = false;
     private static final String TF_OD_API_MODEL_FILE = "mobile_face_net.tflite";
+    // Number of pooled interpreters embedding the faces of a frame concurrently, 0 disables it.
+    private static final int TF_OD_API_POOL_SIZE = 0;
+
+    // Frame pipeline: number of stages, queue capacity of each stage and what a full queue drops.
+    private static final int PIPELINE_STAGES = 4;
+    private static final int PIPELINE_QUEUE_CAPACITY = 1;
+    private static final DropPolicy PIPELINE_DROP_POLICY = DropPolicy.LATEST_WINS;
+    // One frame in work per stage, plus a full queue in front of the slowest stage; the queues of
+    // the faster stages run empty. Past that the camera image is dropped before conversion, as
+    // the drop policy would drop it further down anyway.
+    private static final int PIPELINE_FRAMES = PIPELINE_STAGES + PIPELINE_QUEUE_CAPACITY;
+
+    // Distance below which a face is labelled with the identity it matched.
+    private static final float MAXIMUM_RECOGNITION_DISTANCE = 1.0f;
+    // A tracked face is embedded again once its identity is older than this, its box size or
+    // head pose changed by more than these amounts, or its last distance was within the margin
+    // of the acceptance threshold; otherwise the cached identity is reused.
+    private static final long RECOGNITION_MAX_AGE_MS = 3000;
+    private static final float RECOGNITION_MAX_SIZE_CHANGE = 0.3f;
+    private static final float RECOGNITION_MAX_POSE_CHANGE = 20.0f;
+    private static final float RECOGNITION_AMBIGUOUS_MARGIN = 0.15f;
 
 
     private static final String TF_OD_API_LABELS_FILE = "file:///android_asset/labelmap.txt";
+    // Registered faces, kept in the app files directory.
+    private static final String GALLERY_FILE = "gallery.bin";
 
     private static final DetectorMode MODE = DetectorMode.TF_OD_API;
     // Minimum detection confidence to track a detection.
@@ -128,8 +159,7 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     private Bitmap croppedBitmap = null;
     private Bitmap cropCopyBitmap = null;
 
-    private boolean computingDetection = false;
-    private boolean addPending = false;
+    private volatile boolean addPending = false;
     //private boolean adding = false;
 
     private long timestamp = 0;
@@ -139,6 +169,13 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     //private Matrix cropToPortraitTransform;
 
     private MultiBoxTracker tracker;
+    private final RecognitionScheduler scheduler =
+            new RecognitionScheduler(
+                    RECOGNITION_MAX_AGE_MS,
+                    RECOGNITION_MAX_SIZE_CHANGE,
+                    RECOGNITION_MAX_POSE_CHANGE,
+                    MAXIMUM_RECOGNITION_DISTANCE,
+                    RECOGNITION_AMBIGUOUS_MARGIN);
 
     private BorderedText borderedText;
 
@@ -150,6 +187,13 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     // here the face is cropped and drawn
     private Bitmap faceBmp = null;
 
+    // Camera frames flow convert -> detect -> embed -> publish, each stage on its own thread.
+    private ArrayBlockingQueue<Frame> frames;
+    private FrameStage<Frame> convertStage;
+    private FrameStage<Frame> detectStage;
+    private FrameStage<Frame> embedStage;
+    private FrameStage<Frame> publishStage;
+
     private FloatingActionButton fabAdd;
     private FloatingActionButton fabSearch;
     private Context activityContext;
@@ -226,7 +270,7 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
                                         updateResults(currTimestamp, new LinkedList<>());
                                         addPending = false;
                                     }
-                                    runInBackground(
+                                    runInEmbedStage(
                                             new Runnable() {
                                                 @Override
                                                 public void run() {
@@ -234,7 +278,7 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
                                                     detector.enableStatLogging(true);
                                                     List<SimilarityClassifier.Recognition> mappedFaces = loopThroughFaces(currTimestamp, faces,selectedImage);
                                                     for (SimilarityClassifier.Recognition mappedFace:mappedFaces) {
-                                                        showAddFaceDialog(mappedFace, true);
+                                                        runOnUiThread(() -> showAddFaceDialog(mappedFace, true));
                                                     }
                                                     addPending = false;
                                                     faceDetector.close();
@@ -264,6 +308,13 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
         tracker = new MultiBoxTracker(this);
 
+        // The stages use the detector, so they stop before it is replaced, and the previous one
+        // is closed along with its interpreters, search threads and background executors.
+        stopPipeline();
+        if (detector != null) {
+            detector.close();
+            detector = null;
+        }
 
         try {
             detector =
@@ -272,22 +323,9 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
                             TF_OD_API_MODEL_FILE,
                             TF_OD_API_LABELS_FILE,
                             TF_OD_API_INPUT_SIZE,
-                            TF_OD_API_IS_QUANTIZED);
+                            TF_OD_API_IS_QUANTIZED,
+                            TF_OD_API_POOL_SIZE);
             //cropSize = TF_OD_API_INPUT_SIZE;
-
-
-
-            SharedPreferences sharedPref = getApplicationContext().getSharedPreferences(
-                    getString(R.string.tfe_od_local), Context.MODE_PRIVATE);
-            String prevLocalImage = sharedPref.getString(getString(R.string.tfe_od_local), "kosong");
-
-            if(!prevLocalImage.equals("kosong")) {
-                SimilarityClassifier.Recognition prevRec = gson.fromJson(prevLocalImage, SimilarityClassifier.Recognition.class);
-
-                if(detector != null){
-                    detector.register("User",prevRec);
-                }
-            }
         } catch (final IOException e) {
             e.printStackTrace();
             LOGGER.e(e, "Exception initializing classifier!");
@@ -305,7 +343,6 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         LOGGER.i("Camera orientation relative to screen canvas: %d", sensorOrientation);
 
         LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
-        rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
 
 
         int targetW, targetH;
@@ -362,6 +399,109 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
                 });
 
         tracker.setFrameConfiguration(previewWidth, previewHeight, sensorOrientation);
+
+        createPipeline(cropW, cropH);
+        // Loading, mapping and indexing grow with the gallery, so they run on the embed stage,
+        // ahead of the first frame, rather than on the UI thread.
+        runInEmbedStage(this::loadGallery);
+    }
+
+    private void loadGallery() {
+        if (detector == null) {
+            return;
+        }
+        try {
+            // Low-RAM devices search the gallery straight from the mapped file.
+            final ActivityManager activityManager =
+                    (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+            detector.setGalleryFile(
+                    new File(getFilesDir(), GALLERY_FILE), activityManager.isLowRamDevice());
+        } catch (final IOException e) {
+            LOGGER.e(e, "Exception loading the gallery!");
+            runOnUiThread(() -> Toast.makeText(
+                    getApplicationContext(), "Saved faces could not be loaded", Toast.LENGTH_SHORT).show());
+        }
+
+        // A face saved by earlier versions as a JSON preference moves to the gallery file.
+        SharedPreferences sharedPref = getApplicationContext().getSharedPreferences(
+                getString(R.string.tfe_od_local), Context.MODE_PRIVATE);
+        String prevLocalImage = sharedPref.getString(getString(R.string.tfe_od_local), "kosong");
+
+        if(!prevLocalImage.equals("kosong")) {
+            SimilarityClassifier.Recognition prevRec = gson.fromJson(prevLocalImage, SimilarityClassifier.Recognition.class);
+            detector.register("User",prevRec);
+            sharedPref.edit().remove(getString(R.string.tfe_od_local)).apply();
+        }
+    }
+
+    @Override
+    public synchronized void onResume() {
+        super.onResume();
+        startPipeline();
+    }
+
+    @Override
+    public synchronized void onPause() {
+        stopPipeline();
+        super.onPause();
+    }
+
+    private void createPipeline(final int cropW, final int cropH) {
+        stopPipeline();
+        // Tasks still queued on the embed stage being replaced, such as loading the gallery or
+        // registering a face, move to the new one. They read the detector field when they run,
+        // so they use the new detector.
+        final List<Runnable> pendingTasks =
+                embedStage != null ? embedStage.takeTasks() : new ArrayList<>();
+
+        frames = new ArrayBlockingQueue<>(PIPELINE_FRAMES);
+        for (int i = 0; i < PIPELINE_FRAMES; ++i) {
+            frames.add(new Frame(frames, cropW, cropH));
+        }
+
+        final FrameStage.Recycler<Frame> recycler = DetectorActivity::recycleFrame;
+        convertStage = new FrameStage<>("convert", PIPELINE_QUEUE_CAPACITY, PIPELINE_DROP_POLICY,
+                this::convertFrame, recycler);
+        detectStage = new FrameStage<>("detect", PIPELINE_QUEUE_CAPACITY, PIPELINE_DROP_POLICY,
+                this::detectFaces, recycler);
+        embedStage = new FrameStage<>("embed", PIPELINE_QUEUE_CAPACITY, PIPELINE_DROP_POLICY,
+                this::embedFaces, recycler);
+        for (final Runnable task : pendingTasks) {
+            embedStage.post(task);
+        }
+        publishStage = new FrameStage<>("publish", PIPELINE_QUEUE_CAPACITY, PIPELINE_DROP_POLICY,
+                this::publishResults, recycler);
+        startPipeline();
+    }
+
+    private void startPipeline() {
+        if (convertStage == null) {
+            return;
+        }
+        publishStage.start();
+        embedStage.start();
+        detectStage.start();
+        convertStage.start();
+    }
+
+    // Upstream stages first, so nothing is offered to a stage that already stopped.
+    private void stopPipeline() {
+        if (convertStage == null) {
+            return;
+        }
+        convertStage.stop();
+        detectStage.stop();
+        embedStage.stop();
+        publishStage.stop();
+    }
+
+    // The classifier is not thread-safe, so everything touching it runs on the embed stage.
+    private void runInEmbedStage(final Runnable r) {
+        if (embedStage != null) {
+            embedStage.post(r);
+        } else {
+            runInBackground(r);
+        }
     }
 
 
@@ -371,48 +511,74 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         final long currTimestamp = timestamp;
         trackingOverlay.postInvalidate();
 
-        // No mutex needed as this method is not reentrant.
-        if (computingDetection) {
+        // Only the camera buffers are copied here, so they go back to the camera right away
+        // and the frame is processed by the pipeline stages.
+        final Frame frame = frames != null ? frames.poll() : null;
+        if (frame == null) {
+            LOGGER.w("No free frame, dropping image " + currTimestamp);
             readyForNextImage();
             return;
         }
-        computingDetection = true;
+        fillYuvFrame(frame.yuv);
+        readyForNextImage();
 
         LOGGER.i("Preparing image " + currTimestamp + " for detection in bg thread.");
+        frame.timestamp = currTimestamp;
+        convertStage.offer(frame);
+    }
 
-        rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
-
-        readyForNextImage();
-
-        final Canvas canvas = new Canvas(croppedBitmap);
-        canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
+    private void convertFrame(final Frame frame) {
+        // The detector input is sampled straight from the YUV frame, rotated and downscaled in
+        // one pass; the full-frame ARGB conversion is left to the frames a face is added from.
+        final Bitmap cropped = frame.croppedBitmap;
+        frame.yuv.setOrientation(sensorOrientation, false);
+        frame.yuv.convertToARGB8888(cropped.getWidth(), cropped.getHeight(), frame.croppedPixels);
+        cropped.setPixels(frame.croppedPixels, 0, cropped.getWidth(), 0, 0,
+                cropped.getWidth(), cropped.getHeight());
         // For examining the actual TF input.
         if (SAVE_PREVIEW_BITMAP) {
-            ImageUtils.saveBitmap(croppedBitmap);
-        }
-
-        InputImage image = InputImage.fromBitmap(croppedBitmap, 0);
-        if(faceDetector != null){
-            faceDetector
-                    .process(image)
-                    .addOnSuccessListener(new OnSuccessListener<List<Face>>() {
-                        @Override
-                        public void onSuccess(List<Face> faces) {
-                            if (faces.size() == 0) {
-                                updateResults(currTimestamp, new LinkedList<>());
-                                return;
-                            }
-                            runInBackground(
-                                    new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            onFacesDetected(currTimestamp, faces, addPending);
-                                            addPending = false;
-                                        }
-                                    });
-                        }
-                    });
+            ImageUtils.saveBitmap(frame.croppedBitmap);
+        }
+        detectStage.offer(frame);
+    }
+
+    private void detectFaces(final Frame frame) throws Exception {
+        if (faceDetector == null) {
+            recycleFrame(frame);
+            return;
+        }
+        InputImage image = InputImage.fromBitmap(frame.croppedBitmap, 0);
+        frame.faces = Tasks.await(faceDetector.process(image));
+        // Frames without faces still go through the embed stage, so the tracker sees every
+        // frame in order.
+        embedStage.offer(frame);
+    }
+
+    private void embedFaces(final Frame frame) {
+        if (frame.faces.isEmpty()) {
+            frame.trackIds = tracker.assignTracks(new ArrayList<>(), frame.timestamp);
+            frame.recognitions = new LinkedList<>();
+            publishStage.offer(frame);
+            return;
         }
+        final boolean add = addPending;
+        frame.recognitions = onFacesDetected(frame, add);
+        if (add) {
+            addPending = false;
+        }
+        publishStage.offer(frame);
+    }
+
+    private void publishResults(final Frame frame) {
+        updateResults(frame.timestamp, frame.recognitions, frame.trackIds);
+        recycleFrame(frame);
+    }
+
+    private static void recycleFrame(final Frame frame) {
+        frame.faces = null;
+        frame.trackIds = null;
+        frame.recognitions = null;
+        frame.pool.offer(frame);
     }
 
     @Override
@@ -433,12 +599,12 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
     @Override
     protected void setUseNNAPI(final boolean isChecked) {
-        runInBackground(() -> detector.setUseNNAPI(isChecked));
+        runInEmbedStage(() -> detector.setUseNNAPI(isChecked));
     }
 
     @Override
     protected void setNumThreads(final int numThreads) {
-        runInBackground(() -> detector.setNumThreads(numThreads));
+        runInEmbedStage(() -> detector.setNumThreads(numThreads));
     }
 
 
@@ -502,17 +668,13 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
                     return;
                 }
 
-                if(manualAdd){
-                    SharedPreferences sharedPreferences = getApplicationContext().getSharedPreferences(
-                            getString(R.string.tfe_od_local), Context.MODE_PRIVATE);
-                    SharedPreferences.Editor editor = sharedPreferences.edit();
-                    editor.putString(getString(R.string.tfe_od_local), gson.toJson(rec));
-                    editor.apply();
-                }
-
                 Log.e("name",name);
                 Log.e("rec",gson.toJson(rec));
-                detector.register(name, rec);
+                runInEmbedStage(() -> {
+                    detector.register(name, rec);
+                    // Cached identities may now match the new face better.
+                    scheduler.invalidate();
+                });
                 //knownFaces.put(name, rec);
                 dlg.dismiss();
             }
@@ -553,17 +715,24 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     }
 
     private void updateResults(long currTimestamp, final List<SimilarityClassifier.Recognition> mappedRecognitions) {
+        updateResults(currTimestamp, mappedRecognitions, null);
+    }
+
+    private void updateResults(long currTimestamp, final List<SimilarityClassifier.Recognition> mappedRecognitions, int[] trackIds) {
 
-        tracker.trackResults(mappedRecognitions, currTimestamp);
+        if (trackIds != null) {
+            tracker.trackResults(mappedRecognitions, trackIds, currTimestamp);
+        } else {
+            tracker.trackResults(mappedRecognitions, currTimestamp);
+        }
         trackingOverlay.postInvalidate();
-        computingDetection = false;
         //adding = false;
 
         if (mappedRecognitions.size() > 0) {
             LOGGER.i("Adding results");
             SimilarityClassifier.Recognition rec = mappedRecognitions.get(0);
             if (rec.getExtra() != null) {//asdf 2 face detected
-                showAddFaceDialog(rec, false);
+                runOnUiThread(() -> showAddFaceDialog(rec, false));
             }
         }
 
@@ -579,9 +748,11 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
     }
 
-    private void onFacesDetected(long currTimestamp, List<Face> faces, boolean add) {
+    private List<SimilarityClassifier.Recognition> onFacesDetected(Frame frame, boolean add) {
 
-        cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
+        final long currTimestamp = frame.timestamp;
+        final List<Face> faces = frame.faces;
+        cropCopyBitmap = Bitmap.createBitmap(frame.croppedBitmap);
         final Canvas canvas = new Canvas(cropCopyBitmap);
         final Paint paint = new Paint();
         paint.setColor(Color.RED);
@@ -600,8 +771,8 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         //final List<Classifier.Recognition> results = new ArrayList<>();
 
         // Note this can be done only once
-        int sourceW = rgbFrameBitmap.getWidth();
-        int sourceH = rgbFrameBitmap.getHeight();
+        int sourceW = frame.yuv.getWidth();
+        int sourceH = frame.yuv.getHeight();
         int targetW = portraitBmp.getWidth();
         int targetH = portraitBmp.getHeight();
         Matrix transform = createTransform(
@@ -610,18 +781,26 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
                 targetW,
                 targetH,
                 sensorOrientation);
-        final Canvas cv = new Canvas(portraitBmp);
-
-        // draws the original image in portrait mode.
-        cv.drawBitmap(rgbFrameBitmap, transform, null);
+        if (add) {
+            // The portrait image is only needed for the crops shown when adding a face,
+            // recognition samples the faces straight from the YUV frame.
+            final Canvas cv = new Canvas(portraitBmp);
 
-        final Canvas cvFace = new Canvas(faceBmp);
+            // draws the original image in portrait mode.
+            cv.drawBitmap(frame.rgbFrameBitmap(), transform, null);
+        }
 
         boolean saved = false;
 
         Log.e("faces",String.valueOf(faces.size()));
         Log.e("getStatString",detector.getStatString());
 
+        // First pass: collect every face so that they can be tracked and recognized in a single batch.
+        final List<RectF> boundingBoxes = new ArrayList<>(faces.size());
+        final List<Bitmap> crops = new ArrayList<>(faces.size());
+        final List<RectF> faceBoxes = new ArrayList<>(faces.size());
+        final List<Face> trackedFaces = new ArrayList<>(faces.size());
+
         for (Face face : faces) {
 
             Log.e("FACE" , face.toString());
@@ -637,28 +816,12 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
                 // maps crop coordinates to original
                 cropToFrameTransform.mapRect(boundingBox);
 
-                // maps original coordinates to portrait coordinates
-                RectF faceBB = new RectF(boundingBox);
-                transform.mapRect(faceBB);
-
-                // translates portrait to origin and scales to fit input inference size
-                //cv.drawRect(faceBB, paint);
-                float sx = ((float) TF_OD_API_INPUT_SIZE) / faceBB.width();
-                float sy = ((float) TF_OD_API_INPUT_SIZE) / faceBB.height();
-                Matrix matrix = new Matrix();
-                matrix.postTranslate(-faceBB.left, -faceBB.top);
-                matrix.postScale(sx, sy);
-
-                cvFace.drawBitmap(portraitBmp, matrix, null);
-
-                //canvas.drawRect(faceBB, paint);
-                String label = "";
-                float confidence = -1f;
-                Integer color = Color.BLUE;
-                Object extra = null;
                 Bitmap crop = null;
-
                 if (add && portraitBmp != null) {
+                    // maps original coordinates to portrait coordinates
+                    RectF faceBB = new RectF(boundingBox);
+                    transform.mapRect(faceBB);
+
                     crop = Bitmap.createBitmap(portraitBmp,
                             (int) faceBB.left,
                             (int) faceBB.top,
@@ -666,34 +829,7 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
                             (int) faceBB.height());
                 }
 
-                final long startTime = SystemClock.uptimeMillis();
-                Log.e("faceBmp",gson.toJson(faceBmp));
-                final List<SimilarityClassifier.Recognition> resultsAux = detector.recognizeImage(faceBmp, add);
-                lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
-
-                if (resultsAux.size() > 0) {
-
-                    SimilarityClassifier.Recognition result = resultsAux.get(0);
-
-                    extra = result.getExtra();
-                    if (extra != null) {
-                        Log.e("embeeding", gson.toJson(extra));
-                    }
-
-                    float conf = result.getDistance();
-                    if (conf < 1.0f) {
-
-                        confidence = conf;
-                        label = result.getTitle();
-                        if (result.getId().equals("0")) {
-                            color = Color.GREEN;
-                        }
-                        else {
-                            color = Color.RED;
-                        }
-                    }
-
-                }
+                faceBoxes.add(new RectF(boundingBox));
 
                 if (getCameraFacing() == CameraCharacteristics.LENS_FACING_FRONT) {
 
@@ -711,17 +847,91 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
                 }
 
-                final SimilarityClassifier.Recognition result = new SimilarityClassifier.Recognition(
-                        "0", label, confidence, boundingBox);
+                boundingBoxes.add(boundingBox);
+                crops.add(crop);
+                trackedFaces.add(face);
+            }
+        }
+
+        // Only faces whose track has no trusted identity are embedded, the others reuse it.
+        final int[] trackIds = tracker.assignTracks(boundingBoxes, currTimestamp);
+        frame.trackIds = trackIds;
+        final long now = SystemClock.uptimeMillis();
+        scheduler.evict(now);
+        final boolean[] recognize = new boolean[faceBoxes.size()];
+        final List<RectF> pendingBoxes = new ArrayList<>(faceBoxes.size());
+        for (int i = 0; i < faceBoxes.size(); ++i) {
+            final Face face = trackedFaces.get(i);
+            recognize[i] = add || scheduler.needsRecognition(
+                    trackIds[i], boundingBoxes.get(i),
+                    face.getHeadEulerAngleY(), face.getHeadEulerAngleZ(), now);
+            if (recognize[i]) {
+                pendingBoxes.add(faceBoxes.get(i));
+            }
+        }
+
+        List<SimilarityClassifier.Recognition> resultsAux = new ArrayList<>();
+        if (!pendingBoxes.isEmpty()) {
+            final long startTime = SystemClock.uptimeMillis();
+            resultsAux = detector.recognizeFaces(frame.yuv, pendingBoxes, add);
+            lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
+        }
+        LOGGER.v("Recognition scheduler: %s", scheduler.getStatString());
+
+        // Second pass: turn the batch results and cached identities into tracked recognitions.
+        int pending = 0;
+        for (int i = 0; i < faceBoxes.size(); ++i) {
+
+            final RectF boundingBox = boundingBoxes.get(i);
+
+            //canvas.drawRect(faceBB, paint);
+            String label = "";
+            float confidence = -1f;
+            Integer color = Color.BLUE;
+            Object extra = null;
+
+            SimilarityClassifier.Recognition result = null;
+            if (!recognize[i]) {
+                result = new SimilarityClassifier.Recognition(
+                        "0", scheduler.getTitle(trackIds[i]), scheduler.getDistance(trackIds[i]), null);
+            } else if (pending < resultsAux.size()) {
+                result = resultsAux.get(pending++);
+                final Face face = trackedFaces.get(i);
+                scheduler.update(trackIds[i], boundingBox,
+                        face.getHeadEulerAngleY(), face.getHeadEulerAngleZ(),
+                        result.getTitle(), result.getDistance(), now);
+            }
+
+            if (result != null) {
+
+                extra = result.getExtra();
+                if (extra != null) {
+                    Log.e("embeeding", gson.toJson(extra));
+                }
+
+                float conf = result.getDistance();
+                if (conf < MAXIMUM_RECOGNITION_DISTANCE) {
 
-                result.setColor(color);
-                result.setLocation(boundingBox);
-                result.setExtra(extra);
-                result.setCrop(crop);
-                mappedRecognitions.add(result);
+                    confidence = conf;
+                    label = result.getTitle();
+                    if (result.getId().equals("0")) {
+                        color = Color.GREEN;
+                    }
+                    else {
+                        color = Color.RED;
+                    }
+                }
 
             }
 
+            final SimilarityClassifier.Recognition mapped = new SimilarityClassifier.Recognition(
+                    "0", label, confidence, boundingBox);
+
+            mapped.setColor(color);
+            mapped.setLocation(boundingBox);
+            mapped.setExtra(extra);
+            mapped.setCrop(crops.get(i));
+            mappedRecognitions.add(mapped);
 
         }
 
@@ -729,7 +939,7 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 //      lastSaved = System.currentTimeMillis();
 //    }
 
-        updateResults(currTimestamp, mappedRecognitions);
+        return mappedRecognitions;
     }
 
     private List<SimilarityClassifier.Recognition> loopThroughFaces(long currTimestamp, List<Face> faces, Uri selectedImage){
@@ -903,4 +1113,37 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
         return mappedRecognitions;
     }
+
+    /** Buffers of one camera frame while it travels through the pipeline. */
+    private static final class Frame {
+        final ArrayBlockingQueue<Frame> pool;
+        final YuvFaceSampler yuv = new YuvFaceSampler();
+        final int[] croppedPixels;
+        final Bitmap croppedBitmap;
+        // Whole frame as ARGB, allocated and converted only for the frames a face is added from.
+        private int[] rgbBytes;
+        private Bitmap rgbFrameBitmap;
+        long timestamp;
+        List<Face> faces;
+        int[] trackIds;
+        List<SimilarityClassifier.Recognition> recognitions;
+
+        Frame(final ArrayBlockingQueue<Frame> pool, final int cropW, final int cropH) {
+            this.pool = pool;
+            croppedPixels = new int[cropW * cropH];
+            croppedBitmap = Bitmap.createBitmap(cropW, cropH, Config.ARGB_8888);
+        }
+
+        Bitmap rgbFrameBitmap() {
+            final int width = yuv.getWidth();
+            final int height = yuv.getHeight();
+            if (rgbFrameBitmap == null) {
+                rgbBytes = new int[width * height];
+                rgbFrameBitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+            }
+            yuv.convertToARGB8888(rgbBytes);
+            rgbFrameBitmap.setPixels(rgbBytes, 0, width, 0, 0, width, height);
+            return rgbFrameBitmap;
+        }
+    }
 }
@@ -104,7 +104,7 @@ public class ImageUtils {
     }
   }
 
-  private static int YUV2RGB(int y, int u, int v) {
+  static int YUV2RGB(int y, int u, int v) {
     // Adjust and check YUV values
     y = (y - 16) < 0 ? 0 : (y - 16);
     u -= 128;
@@ -138,6 +138,26 @@ public class ImageUtils {
       int uvRowStride,
       int uvPixelStride,
       int[] out) {
+    convertYUV420ToARGB8888(
+        yData, uData, 0, vData, 0, width, height, yRowStride, uvRowStride, uvPixelStride, out);
+  }
+
+  /**
+   * Same as above, with the chroma samples starting at the given offsets, so U and V may share one
+   * interleaved array.
+   */
+  public static void convertYUV420ToARGB8888(
+      byte[] yData,
+      byte[] uData,
+      int uOffset,
+      byte[] vData,
+      int vOffset,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out) {
     int yp = 0;
     for (int j = 0; j < height; j++) {
       int pY = yRowStride * j;
@@ -146,7 +166,11 @@ public class ImageUtils {
       for (int i = 0; i < width; i++) {
         int uv_offset = pUV + (i >> 1) * uvPixelStride;
 
-        out[yp++] = YUV2RGB(0xff & yData[pY + i], 0xff & uData[uv_offset], 0xff & vData[uv_offset]);
+        out[yp++] =
+            YUV2RGB(
+                0xff & yData[pY + i],
+                0xff & uData[uOffset + uv_offset],
+                0xff & vData[vOffset + uv_offset]);
       }
     }
   }
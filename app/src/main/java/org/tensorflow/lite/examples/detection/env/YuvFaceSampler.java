@@ -0,0 +1,258 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.env;
+
+import android.graphics.RectF;
+import java.nio.ByteBuffer;
+
+/**
+ * Samples face regions straight from a YUV420 camera frame into model input.
+ *
+ * Rotation into the portrait orientation, optional mirroring, cropping and bilinear scaling are
+ * applied in one pass per output pixel, so neither the full-frame ARGB conversion nor the
+ * portrait and face bitmaps are needed for recognition. The frame is copied in, so sampling can
+ * run after the camera buffers have been recycled.
+ */
+public class YuvFaceSampler {
+  private byte[] yData;
+  private byte[] uvData;
+  private int width;
+  private int height;
+  private int yRowStride;
+  private int uvRowStride;
+  private int uvPixelStride;
+  // Offsets of the U and V samples inside uvData.
+  private int uOffset;
+  private int vOffset;
+  private int rotation;
+  private boolean mirror;
+
+  /**
+   * Copies a frame delivered as separate planes by the camera2 API.
+   *
+   * @param uvPixelStride Distance between two chroma samples of a row, as reported by the plane.
+   */
+  public void setFrame(
+          final byte[] y,
+          final byte[] u,
+          final byte[] v,
+          final int width,
+          final int height,
+          final int yRowStride,
+          final int uvRowStride,
+          final int uvPixelStride) {
+    this.width = width;
+    this.height = height;
+    this.yRowStride = yRowStride;
+    this.uvRowStride = uvRowStride;
+    this.uvPixelStride = uvPixelStride;
+    yData = copy(y, y.length, yData);
+    if (uvData == null || uvData.length < u.length + v.length) {
+      uvData = new byte[u.length + v.length];
+    }
+    System.arraycopy(u, 0, uvData, 0, u.length);
+    System.arraycopy(v, 0, uvData, u.length, v.length);
+    uOffset = 0;
+    vOffset = u.length;
+  }
+
+  /** Copies a YUV420SP (NV21) frame delivered by the legacy camera API. */
+  public void setFrame(final byte[] nv21, final int width, final int height) {
+    this.width = width;
+    this.height = height;
+    this.yRowStride = width;
+    this.uvRowStride = width;
+    this.uvPixelStride = 2;
+    final int frameSize = width * height;
+    yData = copy(nv21, frameSize, yData);
+    final int uvSize = nv21.length - frameSize;
+    if (uvData == null || uvData.length < uvSize) {
+      uvData = new byte[uvSize];
+    }
+    System.arraycopy(nv21, frameSize, uvData, 0, uvSize);
+    // NV21 interleaves V first, then U.
+    vOffset = 0;
+    uOffset = 1;
+  }
+
+  /**
+   * Sets how the frame maps to the orientation the faces are recognized in.
+   *
+   * @param rotation Clockwise rotation from frame to portrait, a multiple of 90.
+   * @param mirror Whether to flip the face horizontally after rotating.
+   */
+  public void setOrientation(final int rotation, final boolean mirror) {
+    this.rotation = ((rotation % 360) + 360) % 360;
+    this.mirror = mirror;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Converts the whole frame to ARGB_8888 pixels, unrotated. */
+  public void convertToARGB8888(final int[] out) {
+    ImageUtils.convertYUV420ToARGB8888(
+            yData, uvData, uOffset, uvData, vOffset,
+            width, height, yRowStride, uvRowStride, uvPixelStride, out);
+  }
+
+  /**
+   * Converts the whole frame to {@code outWidth x outHeight} ARGB_8888 pixels in the portrait
+   * orientation, with the nearest frame pixel for each output one. A downscaled image costs one
+   * conversion per output pixel rather than one per frame pixel.
+   */
+  public void convertToARGB8888(final int outWidth, final int outHeight, final int[] out) {
+    int p = 0;
+    for (int oy = 0; oy < outHeight; ++oy) {
+      final float v = (oy + 0.5f) / outHeight;
+      for (int ox = 0; ox < outWidth; ++ox) {
+        final float u = mirror ? 1.0f - (ox + 0.5f) / outWidth : (ox + 0.5f) / outWidth;
+
+        // Same walk back to frame coordinates as sample(), over the whole frame.
+        final float fx;
+        final float fy;
+        switch (rotation) {
+          case 90:
+            fx = v * width;
+            fy = (1.0f - u) * height;
+            break;
+          case 180:
+            fx = (1.0f - u) * width;
+            fy = (1.0f - v) * height;
+            break;
+          case 270:
+            fx = (1.0f - v) * width;
+            fy = u * height;
+            break;
+          default:
+            fx = u * width;
+            fy = v * height;
+            break;
+        }
+        final int x = Math.min((int) fx, width - 1);
+        final int y = Math.min((int) fy, height - 1);
+        final int uv = (y >> 1) * uvRowStride + (x >> 1) * uvPixelStride;
+        out[p++] = ImageUtils.YUV2RGB(
+                0xff & yData[y * yRowStride + x],
+                0xff & uvData[uOffset + uv],
+                0xff & uvData[vOffset + uv]);
+      }
+    }
+  }
+
+  /**
+   * Writes one face as {@code size x size} RGB pixels at the buffer position, normalized as
+   * {@code (value - mean) / std} floats, or as raw bytes for quantized models.
+   *
+   * @param box Face bounding box in frame coordinates.
+   */
+  public void sample(
+          final RectF box,
+          final int size,
+          final float mean,
+          final float std,
+          final boolean quantized,
+          final ByteBuffer out) {
+    final float left = box.left;
+    final float top = box.top;
+    final float boxWidth = box.right - box.left;
+    final float boxHeight = box.bottom - box.top;
+    final float invStd = 1.0f / std;
+    final float step = 1.0f / size;
+
+    for (int oy = 0; oy < size; ++oy) {
+      final float v = (oy + 0.5f) * step;
+      for (int ox = 0; ox < size; ++ox) {
+        final float u = mirror ? 1.0f - (ox + 0.5f) * step : (ox + 0.5f) * step;
+
+        // Output (u, v) lies in the rotated box; walk back to frame coordinates.
+        final float fx;
+        final float fy;
+        switch (rotation) {
+          case 90:
+            fx = left + v * boxWidth;
+            fy = top + (1.0f - u) * boxHeight;
+            break;
+          case 180:
+            fx = left + (1.0f - u) * boxWidth;
+            fy = top + (1.0f - v) * boxHeight;
+            break;
+          case 270:
+            fx = left + (1.0f - v) * boxWidth;
+            fy = top + u * boxHeight;
+            break;
+          default:
+            fx = left + u * boxWidth;
+            fy = top + v * boxHeight;
+            break;
+        }
+
+        // Bilinear luminance around the sample point, nearest chroma.
+        final float sx = clamp(fx - 0.5f, width - 1);
+        final float sy = clamp(fy - 0.5f, height - 1);
+        final int x0 = (int) sx;
+        final int y0 = (int) sy;
+        final int x1 = Math.min(x0 + 1, width - 1);
+        final int y1 = Math.min(y0 + 1, height - 1);
+        final float ax = sx - x0;
+        final float ay = sy - y0;
+        final int row0 = y0 * yRowStride;
+        final int row1 = y1 * yRowStride;
+        final float top0 = (0xff & yData[row0 + x0]) * (1 - ax) + (0xff & yData[row0 + x1]) * ax;
+        final float top1 = (0xff & yData[row1 + x0]) * (1 - ax) + (0xff & yData[row1 + x1]) * ax;
+        final float luma = top0 * (1 - ay) + top1 * ay;
+
+        final int uv = ((int) (sy + 0.5f) >> 1) * uvRowStride
+                + ((int) (sx + 0.5f) >> 1) * uvPixelStride;
+        final float cb = (0xff & uvData[uOffset + uv]) - 128;
+        final float cr = (0xff & uvData[vOffset + uv]) - 128;
+
+        // Same coefficients as ImageUtils.YUV2RGB.
+        final float y1164 = 1.164f * Math.max(luma - 16, 0);
+        final float r = clamp(y1164 + 1.596f * cr, 255);
+        final float g = clamp(y1164 - 0.813f * cr - 0.391f * cb, 255);
+        final float b = clamp(y1164 + 2.018f * cb, 255);
+
+        if (quantized) {
+          out.put((byte) r);
+          out.put((byte) g);
+          out.put((byte) b);
+        } else {
+          out.putFloat((r - mean) * invStd);
+          out.putFloat((g - mean) * invStd);
+          out.putFloat((b - mean) * invStd);
+        }
+      }
+    }
+  }
+
+  private static float clamp(final float value, final float max) {
+    return value < 0 ? 0 : (value > max ? max : value);
+  }
+
+  private static byte[] copy(final byte[] src, final int length, byte[] dst) {
+    if (dst == null || dst.length < length) {
+      dst = new byte[length];
+    }
+    System.arraycopy(src, 0, dst, 0, length);
+    return dst;
+  }
+}
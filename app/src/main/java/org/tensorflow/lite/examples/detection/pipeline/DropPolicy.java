@@ -0,0 +1,26 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.pipeline;
+
+/** What a {@link FrameStage} does with an incoming item when its queue is full. */
+public enum DropPolicy {
+  /** Drops everything queued, so the stage always works on the newest item. */
+  LATEST_WINS,
+  /** Drops the oldest queued item to make room. */
+  DROP_OLDEST,
+  /** Drops the incoming item and keeps the queue as it is. */
+  DROP_INCOMING
+}
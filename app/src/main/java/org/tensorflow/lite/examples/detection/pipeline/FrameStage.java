@@ -0,0 +1,206 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.pipeline;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * One stage of a frame pipeline: a worker thread fed by a bounded queue.
+ *
+ * Items are owned by whoever holds them. The processor either hands its item to the next stage
+ * or recycles it; items dropped by the queue, left over at {@link #stop()} or whose processing
+ * threw are given to the recycler, so pooled frame buffers are never lost. Tasks, unlike items,
+ * are kept across {@link #stop()} and run once the stage is started again.
+ */
+public class FrameStage<T> {
+  private static final Logger LOGGER = new Logger();
+
+  /** Work done on every item, on the stage thread. */
+  public interface Processor<T> {
+    void process(T item) throws Exception;
+  }
+
+  /** Takes back items the stage will not process. */
+  public interface Recycler<T> {
+    void recycle(T item);
+  }
+
+  private final String name;
+  private final int capacity;
+  private final DropPolicy dropPolicy;
+  private final Processor<T> processor;
+  private final Recycler<T> recycler;
+
+  private final ArrayDeque<T> queue;
+  // Tasks posted with post(), run in order before the next item.
+  private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+  private Thread worker;
+  private boolean running;
+  private long dropped;
+
+  public FrameStage(
+          final String name,
+          final int capacity,
+          final DropPolicy dropPolicy,
+          final Processor<T> processor,
+          final Recycler<T> recycler) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Stage capacity must be positive: " + capacity);
+    }
+    this.name = name;
+    this.capacity = capacity;
+    this.dropPolicy = dropPolicy;
+    this.processor = processor;
+    this.recycler = recycler;
+    this.queue = new ArrayDeque<>(capacity);
+  }
+
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    running = true;
+    worker = new Thread(this::loop, name);
+    worker.start();
+  }
+
+  /**
+   * Stops the worker after its current item or task and recycles every queued item. Queued tasks
+   * are kept for the next {@link #start()}.
+   */
+  public void stop() {
+    final Thread thread;
+    synchronized (this) {
+      if (!running) {
+        return;
+      }
+      running = false;
+      thread = worker;
+      worker = null;
+      notifyAll();
+    }
+    try {
+      thread.join();
+    } catch (final InterruptedException e) {
+      LOGGER.e(e, "Interrupted while stopping stage %s", name);
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      while (!queue.isEmpty()) {
+        recycler.recycle(queue.pollFirst());
+      }
+    }
+  }
+
+  /**
+   * Queues an item, applying the drop policy when the queue is full.
+   *
+   * @return false if the item itself was dropped.
+   */
+  public synchronized boolean offer(final T item) {
+    if (!running) {
+      recycler.recycle(item);
+      return false;
+    }
+    if (queue.size() >= capacity) {
+      switch (dropPolicy) {
+        case LATEST_WINS:
+          while (!queue.isEmpty()) {
+            drop(queue.pollFirst());
+          }
+          break;
+        case DROP_OLDEST:
+          drop(queue.pollFirst());
+          break;
+        case DROP_INCOMING:
+          drop(item);
+          return false;
+      }
+    }
+    queue.addLast(item);
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * Runs a task on the stage thread, in order with the items. Tasks are never dropped: one posted
+   * while the stage is stopped, such as from an activity result delivered before the activity
+   * resumes, waits for the next {@link #start()}.
+   */
+  public synchronized void post(final Runnable task) {
+    tasks.addLast(task);
+    notifyAll();
+  }
+
+  /**
+   * Removes the tasks not run yet, for a stage replacing this one to {@link #post} in the same
+   * order. Only meaningful once the stage is stopped.
+   */
+  public synchronized List<Runnable> takeTasks() {
+    final List<Runnable> taken = new ArrayList<>(tasks);
+    tasks.clear();
+    return taken;
+  }
+
+  /** Number of items dropped by the queue so far. */
+  public synchronized long getDroppedCount() {
+    return dropped;
+  }
+
+  private void drop(final T item) {
+    ++dropped;
+    LOGGER.v("Stage %s dropping item", name);
+    recycler.recycle(item);
+  }
+
+  private void loop() {
+    while (true) {
+      Runnable task;
+      T item = null;
+      synchronized (this) {
+        while (running && queue.isEmpty() && tasks.isEmpty()) {
+          try {
+            wait();
+          } catch (final InterruptedException e) {
+            return;
+          }
+        }
+        if (!running) {
+          return;
+        }
+        task = tasks.pollFirst();
+        if (task == null) {
+          item = queue.pollFirst();
+        }
+      }
+      try {
+        if (task != null) {
+          task.run();
+        } else {
+          processor.process(item);
+        }
+      } catch (final Exception e) {
+        LOGGER.e(e, "Stage %s failed", name);
+        if (item != null) {
+          recycler.recycle(item);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+
+/** Binary heap of (row, distance) pairs kept in parallel primitive arrays. */
+final class DistanceHeap {
+
+  private final boolean maxHeap;
+  private int[] ids;
+  private float[] distances;
+  private int size;
+
+  /**
+   * @param capacity initial number of entries, the heap grows when needed.
+   * @param maxHeap if true the farthest entry is on top, otherwise the nearest.
+   */
+  DistanceHeap(final int capacity, final boolean maxHeap) {
+    this.maxHeap = maxHeap;
+    this.ids = new int[Math.max(1, capacity)];
+    this.distances = new float[ids.length];
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  void clear() {
+    size = 0;
+  }
+
+  int peekId() {
+    return ids[0];
+  }
+
+  float peekDistance() {
+    return distances[0];
+  }
+
+  void push(final int id, final float distance) {
+    if (size == ids.length) {
+      ids = Arrays.copyOf(ids, size * 2);
+      distances = Arrays.copyOf(distances, size * 2);
+    }
+    int i = size++;
+    while (i > 0) {
+      final int parent = (i - 1) >>> 1;
+      if (!above(distance, distances[parent])) {
+        break;
+      }
+      ids[i] = ids[parent];
+      distances[i] = distances[parent];
+      i = parent;
+    }
+    ids[i] = id;
+    distances[i] = distance;
+  }
+
+  /** Removes the top entry and returns its id. */
+  int pop() {
+    final int top = ids[0];
+    --size;
+    if (size > 0) {
+      siftDown(0, ids[size], distances[size]);
+    }
+    return top;
+  }
+
+  /**
+   * Keeps the {@code k} nearest distinct ids seen so far. An id already in the heap only has its
+   * distance lowered, so several rows of one identity take a single slot. Requires a max-heap.
+   */
+  void offer(final int id, final float distance, final int k) {
+    if (size == k && distance >= distances[0]) {
+      return;
+    }
+    for (int i = 0; i < size; ++i) {
+      if (ids[i] == id) {
+        if (distance < distances[i]) {
+          siftDown(i, id, distance);
+        }
+        return;
+      }
+    }
+    if (size < k) {
+      push(id, distance);
+    } else {
+      siftDown(0, id, distance);
+    }
+  }
+
+  /**
+   * Empties the heap into the given arrays, nearest first.
+   *
+   * @return the number of entries written.
+   */
+  int drainAscending(final int[] outIds, final float[] outDistances) {
+    final int n = size;
+    for (int i = n - 1; i >= 0; --i) {
+      outDistances[i] = distances[0];
+      outIds[i] = pop();
+    }
+    return n;
+  }
+
+  private void siftDown(int i, final int id, final float distance) {
+    final int half = size >>> 1;
+    while (i < half) {
+      int child = 2 * i + 1;
+      if (child + 1 < size && above(distances[child + 1], distances[child])) {
+        ++child;
+      }
+      if (!above(distances[child], distance)) {
+        break;
+      }
+      ids[i] = ids[child];
+      distances[i] = distances[child];
+      i = child;
+    }
+    ids[i] = id;
+    distances[i] = distance;
+  }
+
+  private boolean above(final float a, final float b) {
+    return maxHeap ? a > b : a < b;
+  }
+}
@@ -0,0 +1,353 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import org.tensorflow.lite.examples.detection.tflite.SimilarityClassifier.Metric;
+
+/**
+ * Scores a gallery row against a query for the exact scans, lower is closer.
+ *
+ * One implementation is picked per metric and embedding size when the classifier is set up, see
+ * {@link #create}, so that the scan loops only ever see one final class and the JIT inlines it.
+ * The common embedding sizes, 128 and 512 for FaceNet and 192 for MobileFaceNet, get variants
+ * with the dimension as a constant: the loops run over unrolled blocks of 16 components and a
+ * fixed trip count, which the JIT unrolls further.
+ */
+abstract class DistanceKernel {
+
+  // Components per unrolled block, and summed between two checks of the early-abandon bound.
+  static final int BLOCK = 16;
+
+  final int dim;
+
+  private DistanceKernel(final int dim) {
+    this.dim = dim;
+  }
+
+  /** Picks the kernel of a metric, specialized for the dimension when it is a common one. */
+  static DistanceKernel create(final Metric metric, final int dim) {
+    if (metric == Metric.EUCLIDEAN) {
+      switch (dim) {
+        case 128:
+          return new SquaredL2x128();
+        case 192:
+          return new SquaredL2x192();
+        case 512:
+          return new SquaredL2x512();
+        default:
+          return new SquaredL2(dim);
+      }
+    }
+    if (metric == Metric.INNER_PRODUCT) {
+      return new InnerProduct(dim);
+    }
+    switch (dim) {
+      case 128:
+        return new Dot128();
+      case 192:
+        return new Dot192();
+      case 512:
+        return new Dot512();
+      default:
+        return new Dot(dim);
+    }
+  }
+
+  /**
+   * Score of {@code data[offset..offset + dim)} against the query. Kernels may stop as soon as
+   * the score is known to exceed {@code bound}, returning any value above it.
+   */
+  abstract float score(float[] data, int offset, float[] query, float bound);
+
+  /** Distance reported for a score, "lower is closer" like the score. */
+  abstract float toDistance(float score);
+
+  /** Squared L2 distance, reported as the L2 distance. */
+  private abstract static class L2Kernel extends DistanceKernel {
+    L2Kernel(final int dim) {
+      super(dim);
+    }
+
+    @Override
+    final float toDistance(final float score) {
+      return (float) Math.sqrt(score);
+    }
+  }
+
+  /**
+   * Dot product of unit vectors turned into {@code 2 - 2 dot}, their squared L2 distance, so that
+   * cosine scores mix with those of the L2 indexes, and reported as that L2 distance.
+   */
+  private abstract static class DotKernel extends DistanceKernel {
+    DotKernel(final int dim) {
+      super(dim);
+    }
+
+    static float fromDot(final float dot) {
+      return 2 - 2 * dot;
+    }
+
+    @Override
+    final float toDistance(final float score) {
+      return (float) Math.sqrt(Math.max(0, score));
+    }
+  }
+
+  private static final class SquaredL2 extends L2Kernel {
+    SquaredL2(final int dim) {
+      super(dim);
+    }
+
+    @Override
+    float score(final float[] data, final int offset, final float[] query, final float bound) {
+      return squaredDistance(data, offset, query, dim, bound);
+    }
+  }
+
+  private static final class SquaredL2x128 extends L2Kernel {
+    private static final int DIM = 128;
+
+    SquaredL2x128() {
+      super(DIM);
+    }
+
+    @Override
+    float score(final float[] data, final int offset, final float[] query, final float bound) {
+      float sum = 0;
+      for (int i = 0; i < DIM; i += BLOCK) {
+        sum += squaredDistance16(data, offset + i, query, i);
+        if (sum > bound) {
+          return sum;
+        }
+      }
+      return sum;
+    }
+  }
+
+  private static final class SquaredL2x192 extends L2Kernel {
+    private static final int DIM = 192;
+
+    SquaredL2x192() {
+      super(DIM);
+    }
+
+    @Override
+    float score(final float[] data, final int offset, final float[] query, final float bound) {
+      float sum = 0;
+      for (int i = 0; i < DIM; i += BLOCK) {
+        sum += squaredDistance16(data, offset + i, query, i);
+        if (sum > bound) {
+          return sum;
+        }
+      }
+      return sum;
+    }
+  }
+
+  private static final class SquaredL2x512 extends L2Kernel {
+    private static final int DIM = 512;
+
+    SquaredL2x512() {
+      super(DIM);
+    }
+
+    @Override
+    float score(final float[] data, final int offset, final float[] query, final float bound) {
+      float sum = 0;
+      for (int i = 0; i < DIM; i += BLOCK) {
+        sum += squaredDistance16(data, offset + i, query, i);
+        if (sum > bound) {
+          return sum;
+        }
+      }
+      return sum;
+    }
+  }
+
+  /**
+   * Raw dot product, scored as {@code -dot} and reported as {@code 1 - dot}: unlike the L2 scale
+   * of the cosine kernels, the distance keeps the order of the scores whatever the lengths of
+   * the embeddings. Only models trained with it use it, so there are no unrolled variants.
+   */
+  private static final class InnerProduct extends DistanceKernel {
+    InnerProduct(final int dim) {
+      super(dim);
+    }
+
+    @Override
+    float score(final float[] data, final int offset, final float[] query, final float bound) {
+      return -dot(data, offset, query, dim);
+    }
+
+    @Override
+    float toDistance(final float score) {
+      return 1 + score;
+    }
+  }
+
+  private static final class Dot extends DotKernel {
+    Dot(final int dim) {
+      super(dim);
+    }
+
+    @Override
+    float score(final float[] data, final int offset, final float[] query, final float bound) {
+      return fromDot(dot(data, offset, query, dim));
+    }
+  }
+
+  private static final class Dot128 extends DotKernel {
+    private static final int DIM = 128;
+
+    Dot128() {
+      super(DIM);
+    }
+
+    @Override
+    float score(final float[] data, final int offset, final float[] query, final float bound) {
+      float sum = 0;
+      for (int i = 0; i < DIM; i += BLOCK) {
+        sum += dot16(data, offset + i, query, i);
+      }
+      return fromDot(sum);
+    }
+  }
+
+  private static final class Dot192 extends DotKernel {
+    private static final int DIM = 192;
+
+    Dot192() {
+      super(DIM);
+    }
+
+    @Override
+    float score(final float[] data, final int offset, final float[] query, final float bound) {
+      float sum = 0;
+      for (int i = 0; i < DIM; i += BLOCK) {
+        sum += dot16(data, offset + i, query, i);
+      }
+      return fromDot(sum);
+    }
+  }
+
+  private static final class Dot512 extends DotKernel {
+    private static final int DIM = 512;
+
+    Dot512() {
+      super(DIM);
+    }
+
+    @Override
+    float score(final float[] data, final int offset, final float[] query, final float bound) {
+      float sum = 0;
+      for (int i = 0; i < DIM; i += BLOCK) {
+        sum += dot16(data, offset + i, query, i);
+      }
+      return fromDot(sum);
+    }
+  }
+
+  /**
+   * Squared L2 distance between {@code data[offset..offset + dim)} and the query, abandoned as
+   * soon as a block of components takes the running sum past {@code bound}. Past the bound the
+   * returned value is only known to exceed it; most rows of a scan are abandoned after a few
+   * blocks.
+   */
+  static float squaredDistance(
+          final float[] data,
+          final int offset,
+          final float[] query,
+          final int dim,
+          final float bound) {
+    float sum = 0;
+    int i = 0;
+    for (; i + BLOCK <= dim; i += BLOCK) {
+      for (int j = i, end = i + BLOCK; j < end; ++j) {
+        final float diff = query[j] - data[offset + j];
+        sum += diff * diff;
+      }
+      if (sum > bound) {
+        return sum;
+      }
+    }
+    for (; i < dim; ++i) {
+      final float diff = query[i] - data[offset + i];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  /**
+   * Dot product of {@code a[offset..offset + dim)} and {@code b[0..dim)}, over four independent
+   * accumulators so that the loop pipelines and vectorizes.
+   */
+  static float dot(final float[] a, final int offset, final float[] b, final int dim) {
+    float s0 = 0;
+    float s1 = 0;
+    float s2 = 0;
+    float s3 = 0;
+    int i = 0;
+    for (int j = offset; i + 3 < dim; i += 4, j += 4) {
+      s0 += a[j] * b[i];
+      s1 += a[j + 1] * b[i + 1];
+      s2 += a[j + 2] * b[i + 2];
+      s3 += a[j + 3] * b[i + 3];
+    }
+    for (; i < dim; ++i) {
+      s0 += a[offset + i] * b[i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  // Squared L2 distance of 16 components, in four independent accumulators.
+  private static float squaredDistance16(
+          final float[] a, final int o, final float[] q, final int i) {
+    final float d0 = q[i] - a[o];
+    final float d1 = q[i + 1] - a[o + 1];
+    final float d2 = q[i + 2] - a[o + 2];
+    final float d3 = q[i + 3] - a[o + 3];
+    final float d4 = q[i + 4] - a[o + 4];
+    final float d5 = q[i + 5] - a[o + 5];
+    final float d6 = q[i + 6] - a[o + 6];
+    final float d7 = q[i + 7] - a[o + 7];
+    final float d8 = q[i + 8] - a[o + 8];
+    final float d9 = q[i + 9] - a[o + 9];
+    final float d10 = q[i + 10] - a[o + 10];
+    final float d11 = q[i + 11] - a[o + 11];
+    final float d12 = q[i + 12] - a[o + 12];
+    final float d13 = q[i + 13] - a[o + 13];
+    final float d14 = q[i + 14] - a[o + 14];
+    final float d15 = q[i + 15] - a[o + 15];
+    final float s0 = d0 * d0 + d4 * d4 + d8 * d8 + d12 * d12;
+    final float s1 = d1 * d1 + d5 * d5 + d9 * d9 + d13 * d13;
+    final float s2 = d2 * d2 + d6 * d6 + d10 * d10 + d14 * d14;
+    final float s3 = d3 * d3 + d7 * d7 + d11 * d11 + d15 * d15;
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  // Dot product of 16 components, in four independent accumulators.
+  private static float dot16(final float[] a, final int o, final float[] q, final int i) {
+    final float s0 = a[o] * q[i] + a[o + 4] * q[i + 4] + a[o + 8] * q[i + 8]
+            + a[o + 12] * q[i + 12];
+    final float s1 = a[o + 1] * q[i + 1] + a[o + 5] * q[i + 5] + a[o + 9] * q[i + 9]
+            + a[o + 13] * q[i + 13];
+    final float s2 = a[o + 2] * q[i + 2] + a[o + 6] * q[i + 6] + a[o + 10] * q[i + 10]
+            + a[o + 14] * q[i + 14];
+    final float s3 = a[o + 3] * q[i + 3] + a[o + 7] * q[i + 7] + a[o + 11] * q[i + 11]
+            + a[o + 15] * q[i + 15];
+    return (s0 + s1) + (s2 + s3);
+  }
+}
@@ -0,0 +1,706 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Registered face embeddings stored in a single row-major float array.
+ *
+ * Every row holds one embedding of a fixed dimension and points to the identity it belongs to,
+ * so an identity enrolled with several shots simply owns several rows. Embeddings are converted
+ * once when they are added; searching never boxes, parses or casts.
+ *
+ * Writers are serialized on the gallery and publish an immutable {@link Snapshot} after every
+ * change, which readers take without locking. Arrays shared with a published snapshot are only
+ * written past that snapshot's rows; deletions, compaction and normalization work on copies. A
+ * search pinned to one snapshot therefore never sees a half-written or renumbered row, whatever
+ * enrollments run meanwhile. The read methods of the gallery itself each use the latest snapshot.
+ *
+ * Deleting an identity only marks its rows {@link EmbeddingRows#DELETED} in a copy of the row
+ * identities, a few bytes per row, and the scans skip them; the rows keep their place, so the
+ * indexes built over them stay valid. {@link #compact} reclaims the space of deleted rows.
+ */
+public class EmbeddingGallery implements EmbeddingRows, GalleryFile.Source {
+
+  private static final int INITIAL_CAPACITY = 16;
+  // Rows compared with every query of a batch before moving on, 48 KB of 192-d rows.
+  private static final int BATCH_ROWS = 64;
+
+  private final int dim;
+  private final DistanceKernel l2;
+
+  // Writer state, guarded by this.
+  // embeddings: array of shape [capacity * dim], row r starts at r * dim
+  private float[] embeddings;
+  // rowIdentity: identity index of every row, copied before a deletion while published
+  private int[] rowIdentity;
+  private boolean identitiesPublished;
+  private int rows;
+  // int -> identity table, and its reverse
+  private String[] names;
+  private int nameCount;
+  private final HashMap<String, Integer> identityIds = new HashMap<>();
+  // Rows of every identity, and the most kept per identity, 0 for no limit.
+  private int[] shotCounts;
+  private int maxShots;
+  private int deletedRows;
+  private int generation;
+
+  private volatile Snapshot snapshot;
+
+  public EmbeddingGallery(final int dim) {
+    this.dim = dim;
+    this.l2 = DistanceKernel.create(SimilarityClassifier.Metric.EUCLIDEAN, dim);
+    this.embeddings = new float[INITIAL_CAPACITY * dim];
+    this.rowIdentity = new int[INITIAL_CAPACITY];
+    this.names = new String[INITIAL_CAPACITY];
+    this.shotCounts = new int[INITIAL_CAPACITY];
+    publish();
+  }
+
+  /** The latest published state, consistent across calls. */
+  public Snapshot snapshot() {
+    return snapshot;
+  }
+
+  public int getDimension() {
+    return dim;
+  }
+
+  /** Number of stored embeddings (rows), deleted ones included. */
+  public int size() {
+    return snapshot.size();
+  }
+
+  public int getDeletedCount() {
+    return snapshot.getDeletedCount();
+  }
+
+  public synchronized int getIdentityCount() {
+    return identityIds.size();
+  }
+
+  /** Number of rows stored for the given name, 0 if it is not registered. */
+  public synchronized int getShotCount(final String name) {
+    final Integer id = identityIds.get(name);
+    return id == null ? 0 : shotCounts[id];
+  }
+
+  /**
+   * Caps the rows kept per identity. Later registrations keep their last {@code shots}
+   * embeddings, {@link #add} drops the oldest row of an identity at the cap, and identities
+   * already over it lose their oldest rows now.
+   *
+   * @param shots rows kept per identity, 0 for no limit.
+   * @return true if rows were removed, which renumbers later rows.
+   */
+  public synchronized boolean setMaxShots(final int shots) {
+    maxShots = Math.max(0, shots);
+    if (maxShots == 0) {
+      return false;
+    }
+    final int[] keep = Arrays.copyOf(shotCounts, shotCounts.length);
+    boolean trimmed = false;
+    for (int id = 0; id < nameCount; ++id) {
+      if (keep[id] > maxShots) {
+        keep[id] = maxShots;
+        trimmed = true;
+      }
+    }
+    if (!trimmed) {
+      return false;
+    }
+    compact(keep);
+    publish();
+    return true;
+  }
+
+  public String getIdentity(final int row) {
+    return snapshot.getIdentity(row);
+  }
+
+  /** Identity index of a row, see {@link #getIdentityName}. */
+  public int getRowIdentity(final int row) {
+    return snapshot.getRowIdentity(row);
+  }
+
+  /** Size of the identity table, including names deleted since the last compaction. */
+  public int getIdentityNameCount() {
+    return snapshot.getIdentityNameCount();
+  }
+
+  public String getIdentityName(final int identity) {
+    return snapshot.getIdentityName(identity);
+  }
+
+  public void copyRows(final int firstRow, final FloatBuffer out) {
+    snapshot.copyRows(firstRow, out);
+  }
+
+  public void copyRow(final int row, final float[] out) {
+    snapshot.copyRow(row, out);
+  }
+
+  public float squaredDistance(final int row, final float[] query) {
+    return snapshot.squaredDistance(row, query);
+  }
+
+  /**
+   * Looks for the nearest embedding (using L2 norm) in the latest snapshot.
+   *
+   * @param distance receives the distance of the returned row in its first element.
+   * @return the nearest row, or -1 if the gallery is empty.
+   */
+  public int findNearest(final float[] query, final float[] distance) {
+    return snapshot.findNearest(l2, query, distance);
+  }
+
+  /**
+   * Collects the {@code k} nearest identities of the latest snapshot into a max-heap keyed by
+   * identity index, with the squared L2 distance of each identity's closest row.
+   */
+  void findNearest(final float[] query, final int k, final DistanceHeap heap) {
+    snapshot.findNearest(l2, query, k, heap);
+  }
+
+  /**
+   * Stores the embeddings carried by a {@link SimilarityClassifier.Recognition} extra under the
+   * given name. An identity that is already known has its previous embeddings deleted, matching
+   * the overwrite semantics of the former map based storage. Readers see either none or all of
+   * the change.
+   *
+   * @return true if rows of a previous registration were deleted.
+   */
+  public synchronized boolean register(final String name, final Object extra) {
+    final float[][] values = lastShots(toEmbeddings(extra), maxShots);
+    for (final float[] value : values) {
+      checkDimension(value);
+    }
+    final Integer id = identityIds.get(name);
+    final boolean replaced = id != null && shotCounts[id] > 0;
+    if (replaced) {
+      delete(id, shotCounts[id]);
+    }
+    for (final float[] value : values) {
+      append(name, value);
+    }
+    publish();
+    return replaced;
+  }
+
+  /**
+   * Like {@link #register}, for a name that is already registered only.
+   *
+   * @return false, leaving the gallery unchanged, if the name is not registered.
+   */
+  public synchronized boolean replace(final String name, final Object extra) {
+    if (getShotCount(name) == 0) {
+      return false;
+    }
+    register(name, extra);
+    return true;
+  }
+
+  /**
+   * Appends one embedding for the given name and returns its row. At the shot cap the oldest row
+   * of the identity is deleted first, see {@link #setMaxShots}.
+   */
+  public synchronized int add(final String name, final float[] embedding) {
+    final int row = addRow(name, embedding);
+    publish();
+    return row;
+  }
+
+  /**
+   * Adds the rows of a gallery file in a single change, see {@link GalleryFile#read}: row r is
+   * read from {@code floats} and named {@code names[ids.get()]}, deleted rows are skipped.
+   *
+   * @throws IllegalStateException if the gallery is not empty, whose rows would be duplicated.
+   */
+  synchronized void load(
+          final FloatBuffer floats, final IntBuffer ids, final String[] names, final int count) {
+    if (rows != 0) {
+      throw new IllegalStateException("Gallery already holds " + rows + " rows");
+    }
+    final float[] row = new float[dim];
+    for (int r = 0; r < count; ++r) {
+      floats.get(row);
+      final int id = ids.get();
+      if (id != DELETED) {
+        addRow(names[id], row);
+      }
+    }
+    publish();
+  }
+
+  /** Drops every row and name, starting a new generation. */
+  public synchronized void clear() {
+    embeddings = new float[INITIAL_CAPACITY * dim];
+    rowIdentity = new int[INITIAL_CAPACITY];
+    names = new String[INITIAL_CAPACITY];
+    shotCounts = new int[INITIAL_CAPACITY];
+    identityIds.clear();
+    rows = 0;
+    nameCount = 0;
+    deletedRows = 0;
+    ++generation;
+    publish();
+  }
+
+  /**
+   * Deletes every row of the given identity. The rows only stop matching; their space is
+   * reclaimed by the next {@link #compact}.
+   *
+   * @return false if the name is not registered.
+   */
+  public synchronized boolean remove(final String name) {
+    final Integer id = identityIds.remove(name);
+    if (id == null) {
+      return false;
+    }
+    delete(id, shotCounts[id]);
+    publish();
+    return true;
+  }
+
+  /**
+   * Drops the deleted rows and the names left without rows, renumbering the remaining rows and
+   * identities. Works on copies like every other change, so it may run on a background thread
+   * while searches continue on their snapshot.
+   *
+   * @return true if anything was dropped, which starts a new generation.
+   */
+  public synchronized boolean compact() {
+    if (deletedRows == 0 && identityIds.size() == nameCount) {
+      return false;
+    }
+    compact(Arrays.copyOf(shotCounts, shotCounts.length));
+    publish();
+    return true;
+  }
+
+  /**
+   * Scales every row to unit length, for cosine similarity.
+   *
+   * @return true if any row changed.
+   */
+  public synchronized boolean normalizeRows() {
+    final float[] copy = Arrays.copyOf(embeddings, embeddings.length);
+    boolean changed = false;
+    for (int row = 0, offset = 0; row < rows; ++row, offset += dim) {
+      changed |= normalize(copy, offset, dim);
+    }
+    if (changed) {
+      embeddings = copy;
+      ++generation;
+      publish();
+    }
+    return changed;
+  }
+
+  // Appends one row without publishing, deleting the oldest row of the identity at the shot cap.
+  private int addRow(final String name, final float[] embedding) {
+    checkDimension(embedding);
+    final Integer id = identityIds.get(name);
+    if (id != null && maxShots > 0 && shotCounts[id] >= maxShots) {
+      delete(id, shotCounts[id] - maxShots + 1);
+    }
+    return append(name, embedding);
+  }
+
+  private void checkDimension(final float[] embedding) {
+    if (embedding.length != dim) {
+      throw new IllegalArgumentException(
+              "Embedding has " + embedding.length + " components, expected " + dim);
+    }
+  }
+
+  // Writes a row past the published ones, growing the arrays by copy when full.
+  private int append(final String name, final float[] embedding) {
+    Integer id = identityIds.get(name);
+    if (id == null) {
+      id = nameCount;
+      if (nameCount == names.length) {
+        names = Arrays.copyOf(names, nameCount * 2);
+        shotCounts = Arrays.copyOf(shotCounts, nameCount * 2);
+      }
+      names[nameCount++] = name;
+      identityIds.put(name, id);
+    }
+    if (rows == rowIdentity.length) {
+      final int capacity = rows * 2;
+      embeddings = Arrays.copyOf(embeddings, capacity * dim);
+      rowIdentity = Arrays.copyOf(rowIdentity, capacity);
+      identitiesPublished = false;
+    }
+    System.arraycopy(embedding, 0, embeddings, rows * dim, dim);
+    rowIdentity[rows] = id;
+    ++shotCounts[id];
+    return rows++;
+  }
+
+  // Marks the oldest count rows of an identity deleted, in a copy of the row identities if the
+  // current ones are published, so that published snapshots keep theirs.
+  private void delete(final int id, int count) {
+    if (identitiesPublished) {
+      // One copy per published snapshot, however many deletions go into the next one.
+      rowIdentity = Arrays.copyOf(rowIdentity, rowIdentity.length);
+      identitiesPublished = false;
+    }
+    final int[] identities = rowIdentity;
+    shotCounts[id] -= count;
+    deletedRows += count;
+    for (int row = 0; count > 0; ++row) {
+      if (identities[row] == id) {
+        identities[row] = DELETED;
+        --count;
+      }
+    }
+  }
+
+  // Keeps the last keep[i] rows of every identity i, compacted into fresh arrays so that
+  // published ones stay intact. Deleted rows and identities left without rows are dropped.
+  private void compact(final int[] keep) {
+    final int[] skip = new int[nameCount];
+    final int[] ids = new int[nameCount];
+    final String[] keptNames = new String[names.length];
+    final int[] keptShots = new int[names.length];
+    int keptNameCount = 0;
+    identityIds.clear();
+    for (int id = 0; id < nameCount; ++id) {
+      skip[id] = shotCounts[id] - keep[id];
+      if (keep[id] == 0) {
+        continue;
+      }
+      ids[id] = keptNameCount;
+      keptNames[keptNameCount] = names[id];
+      keptShots[keptNameCount] = keep[id];
+      identityIds.put(names[id], keptNameCount++);
+    }
+    final float[] keptEmbeddings = new float[embeddings.length];
+    final int[] keptIdentities = new int[rowIdentity.length];
+    int dst = 0;
+    for (int src = 0; src < rows; ++src) {
+      final int id = rowIdentity[src];
+      if (id == DELETED) {
+        continue;
+      }
+      if (skip[id] > 0) {
+        --skip[id];
+        continue;
+      }
+      System.arraycopy(embeddings, src * dim, keptEmbeddings, dst * dim, dim);
+      keptIdentities[dst++] = ids[id];
+    }
+    embeddings = keptEmbeddings;
+    rowIdentity = keptIdentities;
+    rows = dst;
+    names = keptNames;
+    nameCount = keptNameCount;
+    shotCounts = keptShots;
+    deletedRows = 0;
+    ++generation;
+  }
+
+  private void publish() {
+    identitiesPublished = true;
+    snapshot = new Snapshot(
+            dim, embeddings, rowIdentity, rows, deletedRows, names, nameCount, generation);
+  }
+
+  /**
+   * Immutable state of the gallery at one point, safe to search from any thread while the gallery
+   * keeps changing.
+   */
+  public static final class Snapshot implements EmbeddingRows, GalleryFile.Source {
+    private final int dim;
+    private final float[] embeddings;
+    private final int[] rowIdentity;
+    private final int rows;
+    private final int deletedRows;
+    private final String[] names;
+    private final int nameCount;
+    private final int generation;
+
+    private Snapshot(
+            final int dim,
+            final float[] embeddings,
+            final int[] rowIdentity,
+            final int rows,
+            final int deletedRows,
+            final String[] names,
+            final int nameCount,
+            final int generation) {
+      this.dim = dim;
+      this.embeddings = embeddings;
+      this.rowIdentity = rowIdentity;
+      this.rows = rows;
+      this.deletedRows = deletedRows;
+      this.names = names;
+      this.nameCount = nameCount;
+      this.generation = generation;
+    }
+
+    /**
+     * Bumped whenever existing rows change, by a compaction or normalization. Of two snapshots of
+     * one generation, the newer holds the same rows as the older one, some possibly deleted since,
+     * followed by new ones.
+     */
+    public int getGeneration() {
+      return generation;
+    }
+
+    public int getDimension() {
+      return dim;
+    }
+
+    /** Number of stored embeddings (rows), deleted ones included. */
+    public int size() {
+      return rows;
+    }
+
+    public int getDeletedCount() {
+      return deletedRows;
+    }
+
+    public String getIdentity(final int row) {
+      return names[rowIdentity[row]];
+    }
+
+    public int getRowIdentity(final int row) {
+      return rowIdentity[row];
+    }
+
+    public int getIdentityNameCount() {
+      return nameCount;
+    }
+
+    public String getIdentityName(final int identity) {
+      return names[identity];
+    }
+
+    public void copyRows(final int firstRow, final FloatBuffer out) {
+      out.put(embeddings, firstRow * dim, (rows - firstRow) * dim);
+    }
+
+    public void copyRow(final int row, final float[] out) {
+      System.arraycopy(embeddings, row * dim, out, 0, dim);
+    }
+
+    public float squaredDistance(final int row, final float[] query) {
+      final float[] data = embeddings;
+      final int offset = row * dim;
+      float sum = 0;
+      for (int i = 0; i < dim; ++i) {
+        final float diff = query[i] - data[offset + i];
+        sum += diff * diff;
+      }
+      return sum;
+    }
+
+    /** Direct access to the row-major storage, valid up to {@code size() * getDimension()}. */
+    float[] getEmbeddings() {
+      return embeddings;
+    }
+
+    /**
+     * Looks for the row with the lowest score of the kernel, abandoning rows part way once they
+     * score past the best one so far where the kernel supports it.
+     *
+     * @param query embedding of {@code getDimension()} components.
+     * @param distance receives the distance of the returned row in its first element, see {@link
+     *     DistanceKernel#toDistance}.
+     * @return the nearest row, or -1 if the gallery is empty.
+     */
+    int findNearest(final DistanceKernel kernel, final float[] query, final float[] distance) {
+      final int best = findNearest(kernel, query, 0, rows, distance);
+      distance[0] = best < 0 ? Float.MAX_VALUE : kernel.toDistance(distance[0]);
+      return best;
+    }
+
+    /**
+     * Looks for the nearest row among rows {@code [first, end)}.
+     *
+     * @param score receives the kernel score of the returned row.
+     * @return the nearest row, or -1 if the range is empty.
+     */
+    int findNearest(
+            final DistanceKernel kernel,
+            final float[] query,
+            final int first,
+            final int end,
+            final float[] score) {
+      int best = -1;
+      float bestScore = Float.MAX_VALUE;
+      final float[] data = embeddings;
+      final int[] identities = rowIdentity;
+      for (int row = first, offset = first * dim; row < end; ++row, offset += dim) {
+        if (identities[row] == DELETED) {
+          continue;
+        }
+        final float value = kernel.score(data, offset, query, bestScore);
+        if (value < bestScore) {
+          bestScore = value;
+          best = row;
+        }
+      }
+      score[0] = bestScore;
+      return best;
+    }
+
+    /**
+     * Collects the {@code k} nearest identities into a max-heap keyed by identity index, with the
+     * kernel score of each identity's closest row.
+     */
+    void findNearest(final DistanceKernel kernel, final float[] query, final int k,
+            final DistanceHeap heap) {
+      findNearest(kernel, query, k, heap, 0, rows);
+    }
+
+    /** Same as above, over rows {@code [first, end)}. */
+    void findNearest(
+            final DistanceKernel kernel,
+            final float[] query,
+            final int k,
+            final DistanceHeap heap,
+            final int first,
+            final int end) {
+      final float[] data = embeddings;
+      final int[] identities = rowIdentity;
+      for (int row = first, offset = first * dim; row < end; ++row, offset += dim) {
+        final int identity = identities[row];
+        if (identity == DELETED) {
+          continue;
+        }
+        // A row past the k-th best cannot enter the heap, nor lower an identity in it.
+        final float bound = heap.size() < k ? Float.MAX_VALUE : heap.peekDistance();
+        final float value = kernel.score(data, offset, query, bound);
+        if (value < bound) {
+          heap.offer(identity, value, k);
+        }
+      }
+    }
+
+    /**
+     * Batched {@link #findNearest(DistanceKernel, float[], float[])}: the rows are scanned once, a
+     * block of {@code BATCH_ROWS} at a time, and every query is compared with a block while it is
+     * in cache, instead of the whole gallery being streamed through the cache once per query.
+     *
+     * @param queries {@code n} embeddings of {@code getDimension()} components.
+     * @param best receives the nearest row of each query, -1 if the gallery is empty.
+     * @param distance receives the distance of each query's row, as in the single query search.
+     */
+    void findNearest(
+            final DistanceKernel kernel,
+            final float[][] queries,
+            final int n,
+            final int[] best,
+            final float[] distance) {
+      Arrays.fill(best, 0, n, -1);
+      // Holds the best score of each query until the end of the scan.
+      Arrays.fill(distance, 0, n, Float.MAX_VALUE);
+      final float[] data = embeddings;
+      final int[] identities = rowIdentity;
+      for (int first = 0; first < rows; first += BATCH_ROWS) {
+        final int end = Math.min(rows, first + BATCH_ROWS);
+        for (int q = 0; q < n; ++q) {
+          final float[] query = queries[q];
+          float bestScore = distance[q];
+          for (int row = first, offset = first * dim; row < end; ++row, offset += dim) {
+            if (identities[row] == DELETED) {
+              continue;
+            }
+            final float value = kernel.score(data, offset, query, bestScore);
+            if (value < bestScore) {
+              bestScore = value;
+              best[q] = row;
+            }
+          }
+          distance[q] = bestScore;
+        }
+      }
+      for (int q = 0; q < n; ++q) {
+        distance[q] = best[q] < 0 ? Float.MAX_VALUE : kernel.toDistance(distance[q]);
+      }
+    }
+  }
+
+  /**
+   * Scales {@code values[offset..offset + dim)} to unit length, leaving a zero vector alone.
+   *
+   * @return true if the values were not already of unit length.
+   */
+  static boolean normalize(final float[] values, final int offset, final int dim) {
+    float norm = 0;
+    for (int i = offset; i < offset + dim; ++i) {
+      norm += values[i] * values[i];
+    }
+    if (norm == 0 || Math.abs(norm - 1) < 1e-5f) {
+      return false;
+    }
+    final float inverse = (float) (1 / Math.sqrt(norm));
+    for (int i = offset; i < offset + dim; ++i) {
+      values[i] *= inverse;
+    }
+    return true;
+  }
+
+  /** The last {@code max} of the values, or all of them if {@code max} is 0. */
+  static float[][] lastShots(final float[][] values, final int max) {
+    return max <= 0 || values.length <= max
+            ? values
+            : Arrays.copyOfRange(values, values.length - max, values.length);
+  }
+
+  /**
+   * Converts a recognition extra into plain embeddings. Accepts the {@code float[][]} produced by
+   * the classifier, a single {@code float[]}, and the nested number lists Gson produces when a
+   * stored recognition is read back.
+   */
+  public static float[][] toEmbeddings(final Object extra) {
+    if (extra instanceof float[][]) {
+      return (float[][]) extra;
+    }
+    if (extra instanceof float[]) {
+      return new float[][] {(float[]) extra};
+    }
+    if (extra instanceof List) {
+      final List<?> list = (List<?>) extra;
+      if (!list.isEmpty() && list.get(0) instanceof Number) {
+        return new float[][] {toEmbedding(list)};
+      }
+      final float[][] values = new float[list.size()][];
+      for (int i = 0; i < values.length; ++i) {
+        values[i] = toEmbedding((List<?>) list.get(i));
+      }
+      return values;
+    }
+    throw new IllegalArgumentException("Unsupported embedding type: " + extra);
+  }
+
+  private static float[] toEmbedding(final List<?> list) {
+    final float[] value = new float[list.size()];
+    for (int i = 0; i < value.length; ++i) {
+      value[i] = ((Number) list.get(i)).floatValue();
+    }
+    return value;
+  }
+}
@@ -0,0 +1,38 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+/** Row access shared by the heap and the memory-mapped gallery, used by the indexes. */
+interface EmbeddingRows {
+  /** Identity of a deleted row, which keeps its place until the storage is compacted. */
+  int DELETED = -1;
+
+  int getDimension();
+
+  /** Number of stored embeddings (rows), deleted ones included. */
+  int size();
+
+  /** Number of rows marked {@link #DELETED}. */
+  int getDeletedCount();
+
+  /** Identity index of a row, {@link #DELETED} for a deleted row. */
+  int getRowIdentity(int row);
+
+  void copyRow(int row, float[] out);
+
+  /** Squared L2 distance between a row and the query. */
+  float squaredDistance(int row, float[] query);
+}
@@ -0,0 +1,395 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary file holding every embedding of an {@link EmbeddingGallery}.
+ *
+ * Layout, little endian: a header of magic, version, dimension, row count and identity count;
+ * the rows as float32; the identity index of every row, -1 for a deleted row; and the string
+ * table, one length prefixed UTF-8 name per identity. New rows are appended in place, and rows
+ * deleted by marking their identity; only the small tables after the rows and the header are
+ * rewritten, after saving the old ones to a journal next to the file. Version 1 files, without
+ * deleted rows, are read as well.
+ */
+public final class GalleryFile {
+  static final int MAGIC = 0x4C414746; // "FGAL"
+  static final int VERSION = 2;
+  static final int HEADER_BYTES = 20;
+
+  private GalleryFile() {}
+
+  /** A gallery as seen by the file: rows of floats, each with an index into a name table. */
+  interface Source {
+    int getDimension();
+
+    int size();
+
+    int getRowIdentity(int row);
+
+    /** Size of the name table, which may hold names no row refers to any more. */
+    int getIdentityNameCount();
+
+    String getIdentityName(int identity);
+
+    /** Copies the rows from {@code firstRow} to the end into {@code out}. */
+    void copyRows(int firstRow, FloatBuffer out);
+  }
+
+  /** Header and tables of a gallery file, everything but the rows. */
+  static final class Tables {
+    int rows;
+    int[] rowIdentity;
+    List<String> names;
+  }
+
+  /**
+   * Loads every live row of the file into an empty gallery, mapping the file instead of
+   * streaming it. Deleted rows are left out, so the gallery starts compacted, and searches see
+   * the rows once all of them are loaded.
+   *
+   * @throws IllegalStateException if the gallery already holds rows.
+   */
+  public static void read(final File file, final EmbeddingGallery gallery) throws IOException {
+    if (gallery.size() != 0) {
+      throw new IllegalStateException("Gallery already holds " + gallery.size() + " rows");
+    }
+    recover(file, gallery.getDimension());
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+         FileChannel channel = raf.getChannel()) {
+      checkMappable(channel.size(), file);
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      final int rows = readHeader(buffer, gallery.getDimension(), file);
+      final int identityCount = buffer.getInt();
+      final int dim = gallery.getDimension();
+
+      // Computed in long, a header claiming too many rows must not wrap around to a valid offset.
+      final long tableOffset = HEADER_BYTES + (long) rows * dim * 4;
+      if (tableOffset + (long) rows * 4 > buffer.limit()) {
+        throw new IOException("Gallery file " + file + " is shorter than its " + rows + " rows");
+      }
+      buffer.position((int) tableOffset + rows * 4);
+      final String[] names = new String[identityCount];
+      for (int i = 0; i < identityCount; ++i) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        names[i] = new String(bytes, StandardCharsets.UTF_8);
+      }
+
+      buffer.position(HEADER_BYTES);
+      final FloatBuffer floats = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+      buffer.position((int) tableOffset);
+      final IntBuffer ids = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+      gallery.load(floats, ids, names, rows);
+    } catch (final RuntimeException e) {
+      // Truncated or inconsistent tables surface as buffer or index exceptions.
+      throw new IOException("Corrupt gallery file " + file, e);
+    }
+  }
+
+  /**
+   * Reads the header and tables of a file, leaving the rows on disk.
+   *
+   * @return the tables, with a row identity array of at least {@code minCapacity} entries.
+   */
+  static Tables readTables(
+          final FileChannel channel, final int dim, final File file, final int minCapacity)
+          throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, header, 0);
+    final Tables tables = new Tables();
+    tables.rows = readHeader(header, dim, file);
+    final int identityCount = header.getInt();
+
+    final long tableOffset = HEADER_BYTES + (long) tables.rows * dim * 4;
+    checkMappable(tableOffset, file);
+    if (tableOffset > channel.size()) {
+      throw new IOException(
+              "Gallery file " + file + " is shorter than its " + tables.rows + " rows");
+    }
+    final ByteBuffer buffer =
+        ByteBuffer.allocate((int) (channel.size() - tableOffset)).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, buffer, tableOffset);
+    try {
+      tables.rowIdentity = new int[Math.max(tables.rows, minCapacity)];
+      for (int r = 0; r < tables.rows; ++r) {
+        tables.rowIdentity[r] = buffer.getInt();
+      }
+      tables.names = new ArrayList<>(identityCount);
+      for (int i = 0; i < identityCount; ++i) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        tables.names.add(new String(bytes, StandardCharsets.UTF_8));
+      }
+    } catch (final RuntimeException e) {
+      throw new IOException("Corrupt gallery file " + file, e);
+    }
+    return tables;
+  }
+
+  /** Replaces the file with the whole gallery, through a temporary file. */
+  public static void write(final File file, final EmbeddingGallery gallery) throws IOException {
+    write(file, gallery.snapshot());
+  }
+
+  static void write(final File file, final Source gallery) throws IOException {
+    final File tmp = new File(file.getPath() + ".tmp");
+    writeNew(tmp, gallery);
+    replace(tmp, file);
+  }
+
+  /** Writes the whole gallery to a file of its own, to {@link #replace} another one with. */
+  static void writeNew(final File file, final Source gallery) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         FileChannel channel = raf.getChannel()) {
+      channel.truncate(0);
+      writeRows(channel, gallery, 0);
+      writeTables(channel, gallery);
+      writeHeader(channel, gallery);
+      channel.force(true);
+    }
+  }
+
+  /** Moves a file written by {@link #writeNew} over another one. */
+  static void replace(final File written, final File file) throws IOException {
+    if (!written.renameTo(file)) {
+      throw new IOException("Could not replace " + file);
+    }
+  }
+
+  /**
+   * Appends the gallery rows from {@code firstRow} on to a file holding exactly the rows before
+   * it, falling back to {@link #write} when the file does not match.
+   */
+  public static void append(final File file, final EmbeddingGallery gallery, final int firstRow)
+          throws IOException {
+    final EmbeddingGallery.Snapshot snapshot = gallery.snapshot();
+    recover(file, snapshot.getDimension());
+    if (!file.exists() || storedRows(file, snapshot.getDimension()) != firstRow) {
+      write(file, snapshot);
+      return;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         FileChannel channel = raf.getChannel()) {
+      update(channel, file, snapshot, rowBytes(snapshot, firstRow));
+    }
+  }
+
+  /**
+   * Writes rows after the ones an open file holds, then the tables and header of the gallery, in
+   * place. The header and tables about to be overwritten are saved to a journal first, so a crash
+   * at any point leaves either the updated file or a journal {@link #recover} undoes it with.
+   *
+   * @param added the last rows of the gallery, the ones not in the file yet, as written.
+   */
+  static void update(
+          final FileChannel channel, final File file, final Source gallery, final ByteBuffer added)
+          throws IOException {
+    final File journal = journal(file);
+    saveTables(channel, journal);
+    final long rowsEnd = HEADER_BYTES + (long) gallery.size() * gallery.getDimension() * 4;
+    writeFully(channel, added, rowsEnd - added.remaining());
+    channel.position(rowsEnd);
+    writeTables(channel, gallery);
+    channel.truncate(channel.position());
+    writeHeader(channel, gallery);
+    channel.force(true);
+    if (!journal.delete()) {
+      throw new IOException("Could not remove " + journal);
+    }
+  }
+
+  /**
+   * Undoes an {@link #update} a crash interrupted, putting back the header and tables saved in
+   * its journal. The rows they describe are never overwritten by an update.
+   */
+  static void recover(final File file, final int dim) throws IOException {
+    final File journal = journal(file);
+    if (!journal.exists()) {
+      return;
+    }
+    if (file.exists()) {
+      try (RandomAccessFile savedRaf = new RandomAccessFile(journal, "r");
+           FileChannel saved = savedRaf.getChannel();
+           RandomAccessFile raf = new RandomAccessFile(file, "rw");
+           FileChannel channel = raf.getChannel()) {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(saved, header, 0);
+        final int rows = readHeader(header, dim, journal);
+        header.rewind();
+        final ByteBuffer tables = ByteBuffer.allocate((int) (saved.size() - HEADER_BYTES));
+        readFully(saved, tables, HEADER_BYTES);
+        final long tableOffset = HEADER_BYTES + (long) rows * dim * 4;
+        writeFully(channel, tables, tableOffset);
+        channel.truncate(tableOffset + tables.limit());
+        writeFully(channel, header, 0);
+        channel.force(true);
+      }
+    }
+    if (!journal.delete()) {
+      throw new IOException("Could not remove " + journal);
+    }
+  }
+
+  private static File journal(final File file) {
+    return new File(file.getPath() + ".journal");
+  }
+
+  // Copies the header and tables of an open file to a journal, which only appears complete.
+  private static void saveTables(final FileChannel channel, final File journal)
+          throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(channel, header, 0);
+    // The header holds the dimension at byte 8 and the row count at byte 12.
+    final long tableOffset = HEADER_BYTES + (long) header.getInt(12) * header.getInt(8) * 4;
+    final ByteBuffer tables = ByteBuffer.allocate((int) (channel.size() - tableOffset));
+    readFully(channel, tables, tableOffset);
+    final File tmp = new File(journal.getPath() + ".tmp");
+    try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+         FileChannel out = raf.getChannel()) {
+      out.truncate(0);
+      writeFully(out, header, 0);
+      writeFully(out, tables, HEADER_BYTES);
+      out.force(true);
+    }
+    replace(tmp, journal);
+  }
+
+  private static int storedRows(final File file, final int dim) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+         FileChannel channel = raf.getChannel()) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      if (channel.read(header, 0) < HEADER_BYTES) {
+        return -1;
+      }
+      header.flip();
+      try {
+        return readHeader(header, dim, file);
+      } catch (final IOException e) {
+        return -1;
+      }
+    }
+  }
+
+  // Rows are read through a single mapping, which cannot reach past 2 GiB.
+  private static void checkMappable(final long bytes, final File file) throws IOException {
+    if (bytes > Integer.MAX_VALUE) {
+      throw new IOException(
+              "Gallery file " + file + " needs " + bytes + " bytes, more than one mapping holds");
+    }
+  }
+
+  private static int readHeader(final ByteBuffer buffer, final int dim, final File file)
+          throws IOException {
+    if (buffer.getInt() != MAGIC) {
+      throw new IOException("Not a gallery file: " + file);
+    }
+    final int version = buffer.getInt();
+    if (version < 1 || version > VERSION) {
+      throw new IOException("Unsupported gallery version " + version + " in " + file);
+    }
+    final int fileDim = buffer.getInt();
+    if (fileDim != dim) {
+      throw new IOException("Gallery dimension " + fileDim + " does not match " + dim);
+    }
+    return buffer.getInt();
+  }
+
+  static void writeHeader(final FileChannel channel, final Source gallery)
+          throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC)
+        .putInt(VERSION)
+        .putInt(gallery.getDimension())
+        .putInt(gallery.size())
+        .putInt(gallery.getIdentityNameCount());
+    header.flip();
+    writeFully(channel, header, 0);
+  }
+
+  /** Writes rows {@code firstRow..size()} at their place and leaves the channel after them. */
+  private static void writeRows(
+          final FileChannel channel, final Source gallery, final int firstRow)
+          throws IOException {
+    final ByteBuffer bytes = rowBytes(gallery, firstRow);
+    final long position = HEADER_BYTES + (long) firstRow * gallery.getDimension() * 4;
+    writeFully(channel, bytes, position);
+    channel.position(position + bytes.capacity());
+  }
+
+  private static ByteBuffer rowBytes(final Source gallery, final int firstRow) {
+    final int count = (gallery.size() - firstRow) * gallery.getDimension();
+    final ByteBuffer bytes = ByteBuffer.allocate(count * 4).order(ByteOrder.LITTLE_ENDIAN);
+    gallery.copyRows(firstRow, bytes.asFloatBuffer());
+    return bytes;
+  }
+
+  /** Writes the row identities and the name table at the channel position, leaving it after. */
+  static void writeTables(final FileChannel channel, final Source gallery)
+          throws IOException {
+    final int identities = gallery.getIdentityNameCount();
+    final byte[][] names = new byte[identities][];
+    int size = gallery.size() * 4;
+    for (int i = 0; i < identities; ++i) {
+      names[i] = gallery.getIdentityName(i).getBytes(StandardCharsets.UTF_8);
+      size += 4 + names[i].length;
+    }
+    final ByteBuffer tables = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    for (int r = 0; r < gallery.size(); ++r) {
+      tables.putInt(gallery.getRowIdentity(r));
+    }
+    for (final byte[] name : names) {
+      tables.putInt(name.length).put(name);
+    }
+    tables.flip();
+    final long position = channel.position();
+    writeFully(channel, tables, position);
+    channel.position(position + size);
+  }
+
+  static void writeFully(final FileChannel channel, final ByteBuffer buffer, long position)
+          throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private static void readFully(final FileChannel channel, final ByteBuffer buffer, long position)
+          throws IOException {
+    while (buffer.hasRemaining()) {
+      final int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new IOException("Unexpected end of gallery file");
+      }
+      position += read;
+    }
+    buffer.flip();
+  }
+}
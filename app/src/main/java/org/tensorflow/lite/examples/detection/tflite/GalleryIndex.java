@@ -0,0 +1,59 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+/**
+ * Search structure over {@link EmbeddingRows}, one kind per search backend.
+ *
+ * An index only covers the rows handed to {@link #addRows()} so far, and reads their vectors
+ * from the rows it was given rather than copying them, so that deleted rows are skipped as soon
+ * as they are marked. Rows keep their numbers until a compaction renumbers them, after which
+ * the index is replaced by a {@link #rebuild} over the new rows. Not thread-safe: only
+ * {@link #rebuild} may run on another thread while the index is searched.
+ */
+interface GalleryIndex {
+  /**
+   * Moves the index to a newer view of the same rows, see {@link EmbeddingGallery.Snapshot}. The
+   * view may hold more rows and more deleted ones, never renumbered ones.
+   */
+  void setRows(EmbeddingRows rows);
+
+  /**
+   * A new index with the same parameters over other rows, such as the compacted gallery, filled
+   * on the calling thread. Reads the parameters of this index only, never its rows or state.
+   */
+  GalleryIndex rebuild(EmbeddingRows rows);
+
+  /** Number of rows gone through by {@link #addRows()}, deleted ones included. */
+  int size();
+
+  /** Indexes the rows added since the last call. */
+  void addRows();
+
+  /**
+   * Looks for the nearest live row.
+   *
+   * @param distance receives the L2 distance of the returned row in its first element.
+   * @return the nearest row, or -1 if there is none.
+   */
+  int findNearest(float[] query, float[] distance);
+
+  /**
+   * Collects the {@code k} nearest identities into a max-heap keyed by identity index, with the
+   * squared L2 distance, or its estimate, of each identity's closest row found.
+   */
+  void findNearest(float[] query, int k, DistanceHeap heap);
+}
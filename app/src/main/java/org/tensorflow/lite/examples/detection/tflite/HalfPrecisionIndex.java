@@ -0,0 +1,172 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+
+/**
+ * IEEE 754 half-precision copy of the gallery rows, stored as {@code short} bit patterns.
+ *
+ * Rows take half the memory of the float gallery, and a scan streams half the bytes; every
+ * component is widened back to float inside the distance kernel with a few bit operations, which
+ * costs more than it saves unless the scan is bound by memory bandwidth. The 11-bit significand
+ * keeps a relative error under 0.05% per component, far below the spread of face embedding
+ * distances, so the scan is used as is without re-ranking. Paired with the memory-mapped gallery,
+ * only these rows live on the heap. Not thread-safe.
+ */
+final class HalfPrecisionIndex implements GalleryIndex {
+
+  // Largest finite half, larger magnitudes are saturated rather than turned into infinity.
+  private static final float MAX_HALF = 65504f;
+
+  private EmbeddingRows rows;
+  private final int dim;
+
+  // halves: array of shape [capacity * dim], row r starts at r * dim
+  private short[] halves;
+  private int size;
+
+  // Row copied out of the gallery while encoding.
+  private final float[] row;
+
+  HalfPrecisionIndex(final EmbeddingRows rows) {
+    this.rows = rows;
+    this.dim = rows.getDimension();
+    this.halves = new short[16 * dim];
+    this.row = new float[dim];
+    addRows();
+  }
+
+  @Override
+  public void setRows(final EmbeddingRows rows) {
+    this.rows = rows;
+  }
+
+  @Override
+  public HalfPrecisionIndex rebuild(final EmbeddingRows rows) {
+    return new HalfPrecisionIndex(rows);
+  }
+
+  /** Number of encoded rows. */
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /** Encodes the gallery rows added since the last call. */
+  @Override
+  public void addRows() {
+    final int total = rows.size();
+    if (total * dim > halves.length) {
+      halves = Arrays.copyOf(halves, Math.max(total, 2 * halves.length / dim) * dim);
+    }
+    for (; size < total; ++size) {
+      rows.copyRow(size, row);
+      for (int i = 0, offset = size * dim; i < dim; ++i) {
+        halves[offset + i] = toHalf(row[i]);
+      }
+    }
+  }
+
+  /**
+   * Looks for the nearest row (using L2 norm), abandoning rows part way like the float scan.
+   *
+   * @param distance receives the L2 distance of the returned row in its first element.
+   * @return the nearest row, or -1 if the index is empty.
+   */
+  @Override
+  public int findNearest(final float[] query, final float[] distance) {
+    int best = -1;
+    float bestDistance = Float.MAX_VALUE;
+    for (int r = 0, offset = 0; r < size; ++r, offset += dim) {
+      if (rows.getRowIdentity(r) == EmbeddingRows.DELETED) {
+        continue;
+      }
+      final float sum = squaredDistance(offset, query, bestDistance);
+      if (sum < bestDistance) {
+        bestDistance = sum;
+        best = r;
+      }
+    }
+    distance[0] = best < 0 ? Float.MAX_VALUE : (float) Math.sqrt(bestDistance);
+    return best;
+  }
+
+  /**
+   * Collects the {@code k} nearest identities into a max-heap keyed by identity index, with the
+   * squared L2 distance of each identity's closest row.
+   */
+  @Override
+  public void findNearest(final float[] query, final int k, final DistanceHeap heap) {
+    for (int r = 0, offset = 0; r < size; ++r, offset += dim) {
+      final int identity = rows.getRowIdentity(r);
+      if (identity == EmbeddingRows.DELETED) {
+        continue;
+      }
+      final float bound = heap.size() < k ? Float.MAX_VALUE : heap.peekDistance();
+      final float sum = squaredDistance(offset, query, bound);
+      if (sum < bound) {
+        heap.offer(identity, sum, k);
+      }
+    }
+  }
+
+  // Squared L2 distance of the row at offset, see DistanceKernel.squaredDistance for the bound.
+  private float squaredDistance(final int offset, final float[] query, final float bound) {
+    final short[] data = halves;
+    float sum = 0;
+    int i = 0;
+    for (; i + DistanceKernel.BLOCK <= dim; i += DistanceKernel.BLOCK) {
+      for (int j = i, end = i + DistanceKernel.BLOCK; j < end; ++j) {
+        final float diff = query[j] - toFloat(data[offset + j]);
+        sum += diff * diff;
+      }
+      if (sum > bound) {
+        return sum;
+      }
+    }
+    for (; i < dim; ++i) {
+      final float diff = query[i] - toFloat(data[offset + i]);
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  /**
+   * Rounds a float to the nearest half, ties to even. Scaling by 2^-112 lines the normal half
+   * exponents up with the bottom of the float ones, so that the half is the top bits of the
+   * scaled float's magnitude.
+   */
+  static short toHalf(final float value) {
+    final int sign = (Float.floatToRawIntBits(value) >>> 16) & 0x8000;
+    final float magnitude = Math.min(Math.abs(value), MAX_HALF);
+    if (magnitude < 0x1p-14f) {
+      // Subnormal halves are multiples of 2^-24. Rounded directly, since scaling into the float
+      // subnormals would round twice.
+      return (short) (sign | (int) Math.rint(magnitude * 0x1p24f));
+    }
+    final int bits = Float.floatToRawIntBits(magnitude * 0x1p-112f);
+    return (short) (sign | ((bits + 0xfff + ((bits >>> 13) & 1)) >>> 13));
+  }
+
+  /**
+   * Widens a half exactly, the inverse scaling of {@link #toHalf}; infinities are not used. No
+   * branch, so that the scan loops stay straight-line code.
+   */
+  static float toFloat(final short half) {
+    return Float.intBitsToFloat(((half & 0x8000) << 16) | ((half & 0x7fff) << 13)) * 0x1p112f;
+  }
+}
@@ -0,0 +1,461 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Hierarchical Navigable Small World graph over the rows of an {@link EmbeddingGallery} snapshot.
+ *
+ * Node i of the graph is row i of the gallery, so the index only stores links and reads the
+ * vectors from the gallery. Rows are inserted incrementally with {@link #addRows()}; an index
+ * whose gallery rows were renumbered has to be rebuilt. Deleted rows stay in the graph to route
+ * searches through, but are never returned.
+ *
+ * See Malkov and Yashunin, "Efficient and robust approximate nearest neighbor search using
+ * Hierarchical Navigable Small World graphs".
+ */
+public class HnswIndex implements GalleryIndex {
+
+  public static final int DEFAULT_M = 16;
+  public static final int DEFAULT_EF_CONSTRUCTION = 100;
+  public static final int DEFAULT_EF_SEARCH = 50;
+
+  private static final int MAGIC = 0x484e5357; // "HNSW"
+  private static final int VERSION = 1;
+  private static final long SEED = 42;
+
+  private EmbeddingGallery.Snapshot gallery;
+  private final int dim;
+  private final int m;
+  private final int maxM0;
+  private final int efConstruction;
+  private final double levelMultiplier;
+  private final Random random = new Random(SEED);
+  private int efSearch = DEFAULT_EF_SEARCH;
+
+  // links[node][level]: neighbour count followed by the neighbour ids
+  private int[][][] links = new int[16][][];
+  private int count;
+  private int entryPoint = -1;
+  private int maxLevel = -1;
+
+  // Pre-allocated search state.
+  private int[] visited = new int[16];
+  private int visitTag;
+  private final DistanceHeap candidates = new DistanceHeap(64, false);
+  private final DistanceHeap results = new DistanceHeap(64, true);
+  private int[] scratchIds;
+  private float[] scratchDistances;
+  private int[] selectedIds;
+
+  public HnswIndex(
+          final EmbeddingGallery.Snapshot gallery, final int m, final int efConstruction) {
+    if (m < 2) {
+      throw new IllegalArgumentException("M must be at least 2: " + m);
+    }
+    this.gallery = gallery;
+    this.dim = gallery.getDimension();
+    this.m = m;
+    this.maxM0 = 2 * m;
+    this.efConstruction = Math.max(efConstruction, m);
+    this.levelMultiplier = 1.0 / Math.log(m);
+    final int scratch = Math.max(this.efConstruction, maxM0) + 1;
+    this.scratchIds = new int[scratch];
+    this.scratchDistances = new float[scratch];
+    this.selectedIds = new int[maxM0 + 1];
+  }
+
+  /** Number of gallery rows linked into the graph. */
+  @Override
+  public int size() {
+    return count;
+  }
+
+  public int getM() {
+    return m;
+  }
+
+  public int getEfSearch() {
+    return efSearch;
+  }
+
+  /** Size of the dynamic candidate list used by queries; higher is slower but more accurate. */
+  public void setEfSearch(final int efSearch) {
+    this.efSearch = Math.max(1, efSearch);
+  }
+
+  /** The graph reads the vectors of a heap gallery, so the rows must be one of its snapshots. */
+  @Override
+  public void setRows(final EmbeddingRows rows) {
+    this.gallery = (EmbeddingGallery.Snapshot) rows;
+  }
+
+  @Override
+  public HnswIndex rebuild(final EmbeddingRows rows) {
+    final HnswIndex index = new HnswIndex((EmbeddingGallery.Snapshot) rows, m, efConstruction);
+    index.setEfSearch(efSearch);
+    index.addRows();
+    return index;
+  }
+
+  /** Links every gallery row that is not yet part of the graph. */
+  @Override
+  public void addRows() {
+    while (count < gallery.size()) {
+      insert(count);
+    }
+  }
+
+  /**
+   * Looks for the (approximately) nearest row using L2 norm.
+   *
+   * @param query embedding of {@code dim} components.
+   * @param distance receives the distance of the returned row in its first element.
+   * @return the nearest row, or -1 if the graph is empty.
+   */
+  @Override
+  public int findNearest(final float[] query, final float[] distance) {
+    if (entryPoint < 0) {
+      distance[0] = Float.MAX_VALUE;
+      return -1;
+    }
+    final float[] data = gallery.getEmbeddings();
+    int ep = entryPoint;
+    float epDistance = distance(query, 0, data, ep);
+    for (int level = maxLevel; level > 0; --level) {
+      ep = greedyClosest(query, 0, data, ep, epDistance, level);
+      epDistance = distance(query, 0, data, ep);
+    }
+    searchLayer(query, 0, data, ep, Math.max(efSearch, 1), 0, true);
+    int best = -1;
+    float bestDistance = Float.MAX_VALUE;
+    while (!results.isEmpty()) {
+      bestDistance = results.peekDistance();
+      best = results.pop();
+    }
+    distance[0] = best < 0 ? Float.MAX_VALUE : (float) Math.sqrt(bestDistance);
+    return best;
+  }
+
+  /**
+   * Collects the (approximately) {@code k} nearest identities into a max-heap keyed by identity
+   * index, with squared L2 distances. The candidate list holds at least {@code k} entries.
+   */
+  @Override
+  public void findNearest(final float[] query, final int k, final DistanceHeap heap) {
+    if (entryPoint < 0) {
+      return;
+    }
+    final float[] data = gallery.getEmbeddings();
+    int ep = entryPoint;
+    float epDistance = distance(query, 0, data, ep);
+    for (int level = maxLevel; level > 0; --level) {
+      ep = greedyClosest(query, 0, data, ep, epDistance, level);
+      epDistance = distance(query, 0, data, ep);
+    }
+    searchLayer(query, 0, data, ep, Math.max(efSearch, k), 0, true);
+    while (!results.isEmpty()) {
+      final float d = results.peekDistance();
+      heap.offer(gallery.getRowIdentity(results.pop()), d, k);
+    }
+  }
+
+  private void insert(final int node) {
+    final int level = (int) (-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+    if (node == links.length) {
+      links = Arrays.copyOf(links, node * 2);
+    }
+    final int[][] nodeLinks = new int[level + 1][];
+    for (int l = 0; l <= level; ++l) {
+      nodeLinks[l] = new int[(l == 0 ? maxM0 : m) + 1];
+    }
+    links[node] = nodeLinks;
+    ++count;
+
+    if (entryPoint < 0) {
+      entryPoint = node;
+      maxLevel = level;
+      return;
+    }
+
+    final float[] data = gallery.getEmbeddings();
+    final int offset = node * dim;
+    int ep = entryPoint;
+    for (int l = maxLevel; l > level; --l) {
+      ep = greedyClosest(data, offset, data, ep, distance(data, offset, data, ep), l);
+    }
+    for (int l = Math.min(level, maxLevel); l >= 0; --l) {
+      searchLayer(data, offset, data, ep, efConstruction, l, false);
+      // Drain the max-heap so that scratch holds the candidates nearest first.
+      int n = results.size();
+      for (int i = n - 1; i >= 0; --i) {
+        scratchDistances[i] = results.peekDistance();
+        scratchIds[i] = results.pop();
+      }
+      ep = scratchIds[0];
+      final int selected = selectNeighbors(data, scratchIds, scratchDistances, n, m);
+      final int[] own = nodeLinks[l];
+      own[0] = selected;
+      System.arraycopy(selectedIds, 0, own, 1, selected);
+      for (int i = 1; i <= selected; ++i) {
+        connect(data, own[i], node, l);
+      }
+    }
+    if (level > maxLevel) {
+      maxLevel = level;
+      entryPoint = node;
+    }
+  }
+
+  /** Adds a back link from {@code from} to {@code to}, pruning with the heuristic when full. */
+  private void connect(final float[] data, final int from, final int to, final int level) {
+    final int[] list = links[from][level];
+    final int capacity = list.length - 1;
+    if (list[0] < capacity) {
+      list[++list[0]] = to;
+      return;
+    }
+    final int fromOffset = from * dim;
+    int n = 0;
+    for (int i = 1; i <= list[0]; ++i) {
+      scratchIds[n] = list[i];
+      scratchDistances[n++] = distance(data, fromOffset, data, list[i]);
+    }
+    scratchIds[n] = to;
+    scratchDistances[n++] = distance(data, fromOffset, data, to);
+    sortByDistance(scratchIds, scratchDistances, n);
+    final int selected = selectNeighbors(data, scratchIds, scratchDistances, n, capacity);
+    list[0] = selected;
+    System.arraycopy(selectedIds, 0, list, 1, selected);
+  }
+
+  /**
+   * Neighbour selection heuristic: a candidate is kept only if it is closer to the base than to
+   * every neighbour kept so far, then the remaining slots are filled with the pruned candidates
+   * nearest first. Candidates must be sorted by ascending distance; the result is written to
+   * {@code selectedIds}.
+   */
+  private int selectNeighbors(
+          final float[] data, final int[] ids, final float[] distances, final int n, final int max) {
+    int selected = 0;
+    int pruned = 0;
+    for (int i = 0; i < n && selected < max; ++i) {
+      final int candidate = ids[i];
+      final int candidateOffset = candidate * dim;
+      boolean keep = true;
+      for (int j = 0; j < selected; ++j) {
+        if (distance(data, candidateOffset, data, selectedIds[j]) < distances[i]) {
+          keep = false;
+          break;
+        }
+      }
+      if (keep) {
+        selectedIds[selected++] = candidate;
+      } else {
+        // Reuse the already consumed prefix of the candidate arrays for the pruned ones.
+        ids[pruned] = candidate;
+        distances[pruned++] = distances[i];
+      }
+    }
+    for (int i = 0; i < pruned && selected < max; ++i) {
+      selectedIds[selected++] = ids[i];
+    }
+    return selected;
+  }
+
+  private int greedyClosest(
+          final float[] query,
+          final int queryOffset,
+          final float[] data,
+          int ep,
+          float epDistance,
+          final int level) {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      final int[] list = links[ep][level];
+      for (int i = 1; i <= list[0]; ++i) {
+        final float d = distance(query, queryOffset, data, list[i]);
+        if (d < epDistance) {
+          epDistance = d;
+          ep = list[i];
+          changed = true;
+        }
+      }
+    }
+    return ep;
+  }
+
+  /**
+   * Best-first search of one layer, leaving up to {@code ef} nearest nodes in {@code results}.
+   * With {@code liveOnly}, deleted rows are expanded but kept out of the results.
+   */
+  private void searchLayer(
+          final float[] query,
+          final int queryOffset,
+          final float[] data,
+          final int ep,
+          final int ef,
+          final int level,
+          final boolean liveOnly) {
+    if (visited.length < count) {
+      visited = new int[Math.max(count, visited.length * 2)];
+      visitTag = 0;
+    }
+    if (++visitTag == Integer.MAX_VALUE) {
+      Arrays.fill(visited, 0);
+      visitTag = 1;
+    }
+    candidates.clear();
+    results.clear();
+    final float epDistance = distance(query, queryOffset, data, ep);
+    candidates.push(ep, epDistance);
+    if (!liveOnly || gallery.getRowIdentity(ep) != EmbeddingRows.DELETED) {
+      results.push(ep, epDistance);
+    }
+    visited[ep] = visitTag;
+
+    while (!candidates.isEmpty()) {
+      if (results.size() >= ef && candidates.peekDistance() > results.peekDistance()) {
+        break;
+      }
+      final int current = candidates.pop();
+      final int[][] currentLinks = links[current];
+      if (currentLinks.length <= level) {
+        continue;
+      }
+      final int[] list = currentLinks[level];
+      for (int i = 1; i <= list[0]; ++i) {
+        final int e = list[i];
+        if (visited[e] == visitTag) {
+          continue;
+        }
+        visited[e] = visitTag;
+        final float d = distance(query, queryOffset, data, e);
+        if (results.size() < ef || d < results.peekDistance()) {
+          candidates.push(e, d);
+          if (liveOnly && gallery.getRowIdentity(e) == EmbeddingRows.DELETED) {
+            continue;
+          }
+          results.push(e, d);
+          if (results.size() > ef) {
+            results.pop();
+          }
+        }
+      }
+    }
+  }
+
+  /** Squared L2 distance between a query and a gallery row. */
+  private float distance(
+          final float[] query, final int queryOffset, final float[] data, final int row) {
+    final int offset = row * dim;
+    float sum = 0;
+    for (int i = 0; i < dim; ++i) {
+      final float diff = query[queryOffset + i] - data[offset + i];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  private static void sortByDistance(final int[] ids, final float[] distances, final int n) {
+    // Insertion sort, n is at most 2 * M + 1.
+    for (int i = 1; i < n; ++i) {
+      final int id = ids[i];
+      final float d = distances[i];
+      int j = i - 1;
+      while (j >= 0 && distances[j] > d) {
+        ids[j + 1] = ids[j];
+        distances[j + 1] = distances[j];
+        --j;
+      }
+      ids[j + 1] = id;
+      distances[j + 1] = d;
+    }
+  }
+
+  /** Writes the graph; the vectors themselves stay in the gallery. */
+  public void write(final DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(dim);
+    out.writeInt(m);
+    out.writeInt(efConstruction);
+    out.writeInt(efSearch);
+    out.writeInt(count);
+    out.writeInt(entryPoint);
+    out.writeInt(maxLevel);
+    for (int node = 0; node < count; ++node) {
+      final int[][] nodeLinks = links[node];
+      out.writeByte(nodeLinks.length);
+      for (final int[] list : nodeLinks) {
+        out.writeShort(list[0]);
+        for (int i = 1; i <= list[0]; ++i) {
+          out.writeInt(list[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads a graph written by {@link #write}. The gallery must contain at least the rows the graph
+   * was built over, in the same order; newer rows can be linked with {@link #addRows()}.
+   */
+  public static HnswIndex read(final DataInputStream in, final EmbeddingGallery.Snapshot gallery)
+          throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not an HNSW index");
+    }
+    final int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported HNSW index version " + version);
+    }
+    final int dim = in.readInt();
+    if (dim != gallery.getDimension()) {
+      throw new IOException(
+              "Index dimension " + dim + " does not match gallery " + gallery.getDimension());
+    }
+    final HnswIndex index = new HnswIndex(gallery, in.readInt(), in.readInt());
+    index.setEfSearch(in.readInt());
+    final int count = in.readInt();
+    if (count > gallery.size()) {
+      throw new IOException("Index has " + count + " nodes, gallery only " + gallery.size());
+    }
+    index.entryPoint = in.readInt();
+    index.maxLevel = in.readInt();
+    index.links = new int[Math.max(16, count)][][];
+    for (int node = 0; node < count; ++node) {
+      final int levels = in.readUnsignedByte();
+      final int[][] nodeLinks = new int[levels][];
+      for (int l = 0; l < levels; ++l) {
+        final int[] list = new int[(l == 0 ? index.maxM0 : index.m) + 1];
+        list[0] = in.readUnsignedShort();
+        for (int i = 1; i <= list[0]; ++i) {
+          list[i] = in.readInt();
+        }
+        nodeLinks[l] = list;
+      }
+      index.links[node] = nodeLinks;
+    }
+    index.count = count;
+    return index;
+  }
+}
@@ -0,0 +1,235 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Inverted-file index over the gallery rows.
+ *
+ * The rows are partitioned by their nearest k-means centroid into lists, and a query scans only
+ * the rows of the {@code nprobe} lists whose centroids are nearest to it, with exact float
+ * distances. New rows are assigned to a list as they are registered; the centroids themselves
+ * only change when the index is retrained. Not thread-safe.
+ */
+final class IvfIndex implements GalleryIndex {
+
+  static final int DEFAULT_LISTS = 256;
+  static final int DEFAULT_NPROBE = 8;
+  // Rows per list the centroids are trained on, the training cost is linear in it.
+  static final int TRAINING_ROWS_PER_LIST = 64;
+
+  private static final int TRAINING_ITERATIONS = 20;
+  private static final long SEED = 42;
+
+  private EmbeddingRows rows;
+  private final int dim;
+  private final int lists;
+  // centroids: array of shape [lists * dim], list l starts at l * dim
+  private final float[] centroids;
+  private int nprobe;
+
+  // Rows of each list, listRows[l][0..listSizes[l]).
+  private final int[][] listRows;
+  private final int[] listSizes;
+  private int size;
+
+  // Search state, reused between queries.
+  private final float[] row;
+  private final DistanceHeap probes;
+
+  IvfIndex(final EmbeddingRows rows, final float[] centroids, final int nprobe) {
+    this.rows = rows;
+    this.dim = rows.getDimension();
+    this.lists = centroids.length / dim;
+    this.centroids = centroids;
+    this.listRows = new int[lists][];
+    this.listSizes = new int[lists];
+    this.row = new float[dim];
+    this.probes = new DistanceHeap(nprobe, true);
+    setNprobe(nprobe);
+  }
+
+  /**
+   * Trains {@code lists} centroids with k-means on a sample of the rows, to run on another thread
+   * while the gallery changes, see {@link KMeans.Sample}.
+   */
+  static Trainer trainer(final EmbeddingRows rows, final int lists) {
+    final Random random = new Random(SEED);
+    return new Trainer(
+            new KMeans.Sample(rows, lists * TRAINING_ROWS_PER_LIST, random),
+            rows.getDimension(),
+            lists,
+            random);
+  }
+
+  @Override
+  public void setRows(final EmbeddingRows rows) {
+    this.rows = rows;
+  }
+
+  /** Number of gallery rows gone through, the live ones among them are assigned to a list. */
+  @Override
+  public int size() {
+    return size;
+  }
+
+  int getLists() {
+    return lists;
+  }
+
+  /** Sets how many of the nearest lists a query scans, the recall and cost grow with it. */
+  void setNprobe(final int nprobe) {
+    this.nprobe = Math.max(1, Math.min(nprobe, lists));
+  }
+
+  /**
+   * An empty index with the same centroids over other rows, such as renumbered ones, to assign a
+   * step at a time with {@link #addRows(int)}.
+   */
+  IvfIndex emptyCopy(final EmbeddingRows rows) {
+    return new IvfIndex(rows, centroids, nprobe);
+  }
+
+  @Override
+  public IvfIndex rebuild(final EmbeddingRows rows) {
+    final IvfIndex index = emptyCopy(rows);
+    index.addRows();
+    return index;
+  }
+
+  /** Assigns the gallery rows added since the last call to their nearest list. */
+  @Override
+  public void addRows() {
+    addRows(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Same as above, at most {@code limit} rows. Deleted rows are passed over.
+   *
+   * @return whether every gallery row is assigned.
+   */
+  boolean addRows(final int limit) {
+    final int end = Math.min(rows.size(), size + Math.max(0, limit));
+    for (; size < end; ++size) {
+      if (rows.getRowIdentity(size) == EmbeddingRows.DELETED) {
+        continue;
+      }
+      rows.copyRow(size, row);
+      final int list = KMeans.nearest(centroids, lists, dim, row, 0);
+      int[] members = listRows[list];
+      if (members == null) {
+        members = listRows[list] = new int[16];
+      } else if (listSizes[list] == members.length) {
+        members = listRows[list] = Arrays.copyOf(members, 2 * members.length);
+      }
+      members[listSizes[list]++] = size;
+    }
+    return size == rows.size();
+  }
+
+  /**
+   * Looks for the nearest row in the probed lists.
+   *
+   * @param distance receives the L2 distance of the returned row in its first element.
+   * @return the nearest row, or -1 if the probed lists are empty.
+   */
+  @Override
+  public int findNearest(final float[] query, final float[] distance) {
+    probe(query);
+    int best = -1;
+    float bestDistance = Float.MAX_VALUE;
+    while (!probes.isEmpty()) {
+      final int list = probes.pop();
+      final int[] members = listRows[list];
+      for (int i = 0, n = listSizes[list]; i < n; ++i) {
+        if (rows.getRowIdentity(members[i]) == EmbeddingRows.DELETED) {
+          continue;
+        }
+        final float d = rows.squaredDistance(members[i], query);
+        if (d < bestDistance) {
+          bestDistance = d;
+          best = members[i];
+        }
+      }
+    }
+    distance[0] = best < 0 ? Float.MAX_VALUE : (float) Math.sqrt(bestDistance);
+    return best;
+  }
+
+  /**
+   * Collects the {@code k} nearest identities of the probed lists into a max-heap keyed by
+   * identity index, with squared distances.
+   */
+  @Override
+  public void findNearest(final float[] query, final int k, final DistanceHeap heap) {
+    probe(query);
+    while (!probes.isEmpty()) {
+      final int list = probes.pop();
+      final int[] members = listRows[list];
+      for (int i = 0, n = listSizes[list]; i < n; ++i) {
+        final int identity = rows.getRowIdentity(members[i]);
+        if (identity != EmbeddingRows.DELETED) {
+          heap.offer(identity, rows.squaredDistance(members[i], query), k);
+        }
+      }
+    }
+  }
+
+  // Keeps the nprobe lists whose centroids are nearest to the query in probes.
+  private void probe(final float[] query) {
+    probes.clear();
+    for (int l = 0, base = 0; l < lists; ++l, base += dim) {
+      float sum = 0;
+      for (int d = 0; d < dim; ++d) {
+        final float diff = query[d] - centroids[base + d];
+        sum += diff * diff;
+      }
+      if (probes.size() < nprobe) {
+        probes.push(l, sum);
+      } else if (sum < probes.peekDistance()) {
+        probes.pop();
+        probes.push(l, sum);
+      }
+    }
+  }
+
+  /** K-means over a sample of the rows, independent of the gallery once created. */
+  static final class Trainer implements Callable<float[]> {
+    private final KMeans.Sample sample;
+    private final int dim;
+    private final int lists;
+    private final Random random;
+
+    private Trainer(
+            final KMeans.Sample sample, final int dim, final int lists, final Random random) {
+      this.sample = sample;
+      this.dim = dim;
+      this.lists = lists;
+      this.random = random;
+    }
+
+    /** Runs k-means and returns the centroids, row-major. */
+    @Override
+    public float[] call() {
+      final float[] values = sample.get();
+      final int n = values.length / dim;
+      return KMeans.train(values, n, dim, Math.min(lists, n), TRAINING_ITERATIONS, random);
+    }
+  }
+}
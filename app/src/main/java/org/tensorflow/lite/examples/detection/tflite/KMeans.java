@@ -0,0 +1,186 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Lloyd's k-means over row-major vectors, used to train the quantizers and the IVF lists. */
+final class KMeans {
+
+  private KMeans() {}
+
+  /**
+   * Clusters {@code n} vectors of {@code dim} components.
+   *
+   * @param data row-major vectors, vector i starts at i * dim.
+   * @param k number of clusters, at most n.
+   * @return the centroids, row-major.
+   */
+  static float[] train(
+          final float[] data,
+          final int n,
+          final int dim,
+          final int k,
+          final int iterations,
+          final Random random) {
+    final float[] centroids = new float[k * dim];
+    // Forgy initialization: k distinct vectors picked at random.
+    final int[] order = new int[n];
+    for (int i = 0; i < n; ++i) {
+      order[i] = i;
+    }
+    for (int c = 0; c < k; ++c) {
+      final int pick = c + random.nextInt(n - c);
+      final int swap = order[c];
+      order[c] = order[pick];
+      order[pick] = swap;
+      System.arraycopy(data, order[c] * dim, centroids, c * dim, dim);
+    }
+
+    final int[] assignment = new int[n];
+    final int[] counts = new int[k];
+    final float[] sums = new float[k * dim];
+    for (int iteration = 0; iteration < iterations; ++iteration) {
+      boolean changed = iteration == 0;
+      for (int i = 0; i < n; ++i) {
+        final int c = nearest(centroids, k, dim, data, i * dim);
+        if (c != assignment[i]) {
+          assignment[i] = c;
+          changed = true;
+        }
+      }
+      if (!changed) {
+        break;
+      }
+
+      Arrays.fill(counts, 0);
+      Arrays.fill(sums, 0);
+      for (int i = 0; i < n; ++i) {
+        final int c = assignment[i];
+        ++counts[c];
+        for (int d = 0, src = i * dim, dst = c * dim; d < dim; ++d) {
+          sums[dst + d] += data[src + d];
+        }
+      }
+      for (int c = 0; c < k; ++c) {
+        if (counts[c] == 0) {
+          // Empty cluster: restart it on a random vector.
+          System.arraycopy(data, random.nextInt(n) * dim, centroids, c * dim, dim);
+          continue;
+        }
+        final float inverse = 1.0f / counts[c];
+        for (int d = 0; d < dim; ++d) {
+          centroids[c * dim + d] = sums[c * dim + d] * inverse;
+        }
+      }
+    }
+    return centroids;
+  }
+
+  /**
+   * Copies distinct gallery rows picked at random, row-major: {@code maxRows} of them, or every
+   * live row if there are fewer. Deleted rows are never picked.
+   */
+  static float[] sample(final EmbeddingRows rows, final int maxRows, final Random random) {
+    final int size = rows.size();
+    final int dim = rows.getDimension();
+    final int[] order = new int[size - rows.getDeletedCount()];
+    int total = 0;
+    for (int row = 0; row < size && total < order.length; ++row) {
+      if (rows.getRowIdentity(row) != EmbeddingRows.DELETED) {
+        order[total++] = row;
+      }
+    }
+    final int n = Math.min(maxRows, total);
+    final float[] values = new float[n * dim];
+    final float[] value = new float[dim];
+    for (int i = 0; i < n; ++i) {
+      final int pick = i + random.nextInt(total - i);
+      final int swap = order[i];
+      order[i] = order[pick];
+      order[pick] = swap;
+      rows.copyRow(order[i], value);
+      System.arraycopy(value, 0, values, i * dim, dim);
+    }
+    return values;
+  }
+
+  /**
+   * A {@link #sample} for a training that runs on another thread. A heap gallery snapshot never
+   * changes, so it is only sampled by {@link #get}, on that thread; other rows, such as the
+   * mapped gallery, are copied when the sample is created.
+   */
+  static final class Sample {
+    private final EmbeddingRows rows;
+    private final int maxRows;
+    private final Random random;
+    private float[] values;
+
+    Sample(final EmbeddingRows rows, final int maxRows, final Random random) {
+      this.maxRows = maxRows;
+      this.random = random;
+      if (rows instanceof EmbeddingGallery.Snapshot) {
+        this.rows = rows;
+      } else {
+        this.rows = null;
+        values = sample(rows, maxRows, random);
+      }
+    }
+
+    /** The sampled rows, row-major. */
+    float[] get() {
+      if (values == null) {
+        values = sample(rows, maxRows, random);
+      }
+      return values;
+    }
+  }
+
+  /** Index of the centroid nearest to the vector at {@code data[offset]}. */
+  static int nearest(
+          final float[] centroids,
+          final int k,
+          final int dim,
+          final float[] data,
+          final int offset) {
+    return nearest(centroids, k, dim, data, offset, 0);
+  }
+
+  /** Same as above, with the centroids starting at {@code centroids[centroidOffset]}. */
+  static int nearest(
+          final float[] centroids,
+          final int k,
+          final int dim,
+          final float[] data,
+          final int offset,
+          final int centroidOffset) {
+    int best = 0;
+    float bestDistance = Float.MAX_VALUE;
+    for (int c = 0, base = centroidOffset; c < k; ++c, base += dim) {
+      float sum = 0;
+      for (int d = 0; d < dim; ++d) {
+        final float diff = data[offset + d] - centroids[base + d];
+        sum += diff * diff;
+      }
+      if (sum < bestDistance) {
+        bestDistance = sum;
+        best = c;
+      }
+    }
+    return best;
+  }
+}
@@ -0,0 +1,510 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Gallery searched straight from a memory-mapped {@link GalleryFile}.
+ *
+ * The rows never reach the Java heap: distances are computed over a {@link FloatBuffer} view of
+ * the mapping, and the OS pages rows in on first access and may drop them again under memory
+ * pressure. Only the names and the identity of every row are kept in memory. New rows are
+ * written to the file and the grown row region is mapped again. Deleted rows are marked in the
+ * identity table of the file, in place, until {@link #compact} rewrites it without them.
+ */
+public class MappedEmbeddingGallery implements EmbeddingRows, GalleryFile.Source, Closeable {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final File file;
+  private final int dim;
+  private final DistanceKernel l2;
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  // View of the mapped rows, row r starts at r * dim.
+  private FloatBuffer floats;
+  private int rows;
+  private int deletedRows;
+  // Row copied out of the mapping for the distance kernels.
+  private final float[] row;
+
+  private int[] rowIdentity;
+  private List<String> identities;
+  private final HashMap<String, Integer> identityIds = new HashMap<>();
+  // Most rows kept per identity, 0 for no limit.
+  private int maxShots;
+  // Count of changes to the rows or tables, for compactions written without the gallery locked.
+  private int changes;
+
+  /** Opens the gallery file, creating an empty one if it does not exist. */
+  public MappedEmbeddingGallery(final File file, final int dim) throws IOException {
+    this.file = file;
+    this.dim = dim;
+    this.l2 = DistanceKernel.create(SimilarityClassifier.Metric.EUCLIDEAN, dim);
+    this.row = new float[dim];
+    GalleryFile.recover(file, dim);
+    if (!file.exists()) {
+      GalleryFile.write(file, new EmbeddingGallery(dim));
+    }
+    open();
+  }
+
+  private void open() throws IOException {
+    raf = new RandomAccessFile(file, "rw");
+    channel = raf.getChannel();
+    final GalleryFile.Tables tables =
+        GalleryFile.readTables(channel, dim, file, INITIAL_CAPACITY);
+    rows = tables.rows;
+    rowIdentity = tables.rowIdentity;
+    identities = tables.names;
+    identityIds.clear();
+    deletedRows = 0;
+    for (int r = 0; r < rows; ++r) {
+      if (rowIdentity[r] == DELETED) {
+        ++deletedRows;
+      } else {
+        identityIds.put(identities.get(rowIdentity[r]), rowIdentity[r]);
+      }
+    }
+    remap();
+  }
+
+  private void remap() throws IOException {
+    final MappedByteBuffer mapped =
+        channel.map(FileChannel.MapMode.READ_ONLY, GalleryFile.HEADER_BYTES, (long) rows * dim * 4);
+    mapped.order(ByteOrder.LITTLE_ENDIAN);
+    floats = mapped.asFloatBuffer();
+  }
+
+  public int getDimension() {
+    return dim;
+  }
+
+  /** Number of stored embeddings (rows), deleted ones included. */
+  public int size() {
+    return rows;
+  }
+
+  public int getDeletedCount() {
+    return deletedRows;
+  }
+
+  public String getIdentity(final int row) {
+    return identities.get(rowIdentity[row]);
+  }
+
+  public int getRowIdentity(final int row) {
+    return rowIdentity[row];
+  }
+
+  public int getIdentityNameCount() {
+    return identities.size();
+  }
+
+  public String getIdentityName(final int identity) {
+    return identities.get(identity);
+  }
+
+  public void copyRows(final int firstRow, final FloatBuffer out) {
+    final FloatBuffer src = floats.duplicate();
+    src.position(firstRow * dim);
+    out.put(src);
+  }
+
+  public void copyRow(final int row, final float[] out) {
+    final FloatBuffer src = floats.duplicate();
+    src.position(row * dim);
+    src.get(out, 0, dim);
+  }
+
+  public float squaredDistance(final int row, final float[] query) {
+    final FloatBuffer data = floats;
+    final int offset = row * dim;
+    float sum = 0;
+    for (int i = 0; i < dim; ++i) {
+      final float diff = query[i] - data.get(offset + i);
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  /**
+   * Stores the embeddings of a recognition extra under the given name, deleting the previous
+   * ones of that name like {@link EmbeddingGallery#register}.
+   *
+   * @return true if rows of a previous registration were deleted.
+   */
+  public boolean register(final String name, final Object extra) throws IOException {
+    final float[][] values =
+        EmbeddingGallery.lastShots(EmbeddingGallery.toEmbeddings(extra), maxShots);
+    final ByteBuffer bytes =
+        ByteBuffer.allocate(values.length * dim * 4).order(ByteOrder.LITTLE_ENDIAN);
+    final FloatBuffer rowsOut = bytes.asFloatBuffer();
+    for (final float[] value : values) {
+      if (value.length != dim) {
+        throw new IllegalArgumentException(
+                "Embedding has " + value.length + " components, expected " + dim);
+      }
+      rowsOut.put(value);
+    }
+    // Only valid embeddings get this far, so a rejected registration changes nothing.
+    Integer id = identityIds.get(name);
+    final boolean replaced = id != null && delete(id);
+    if (id == null) {
+      id = identities.size();
+      identities.add(name);
+      identityIds.put(name, id);
+    }
+    if (rowIdentity.length < rows + values.length) {
+      rowIdentity =
+          Arrays.copyOf(rowIdentity, Math.max(rows + values.length, rowIdentity.length * 2));
+    }
+    for (int i = 0; i < values.length; ++i) {
+      rowIdentity[rows++] = id;
+    }
+    GalleryFile.update(channel, file, this, bytes);
+    remap();
+    ++changes;
+    return replaced;
+  }
+
+  /**
+   * Like {@link #register}, for a name that is already registered only.
+   *
+   * @return false, leaving the gallery unchanged, if the name is not registered.
+   */
+  public boolean replace(final String name, final Object extra) throws IOException {
+    if (!identityIds.containsKey(name)) {
+      return false;
+    }
+    register(name, extra);
+    return true;
+  }
+
+  /**
+   * Deletes every row of the given identity, rewriting only the identity table of the file. The
+   * rows stay mapped until the next {@link #compact}.
+   *
+   * @return false if the name is not registered.
+   */
+  public boolean remove(final String name) throws IOException {
+    final Integer id = identityIds.remove(name);
+    if (id == null) {
+      return false;
+    }
+    delete(id);
+    GalleryFile.update(channel, file, this, ByteBuffer.allocate(0));
+    ++changes;
+    return true;
+  }
+
+  /**
+   * Rewrites the file without the deleted rows, renumbering the remaining ones.
+   *
+   * @return true if any row was dropped.
+   */
+  public boolean compact() throws IOException {
+    if (deletedRows == 0) {
+      return false;
+    }
+    final int[] kept = liveRows();
+    rewrite(kept, kept.length, false);
+    return true;
+  }
+
+  /**
+   * Starts a compaction that, unlike {@link #compact}, writes the new file while the gallery
+   * keeps being searched and changed: only this call and {@link #finishCompaction} need the
+   * gallery to themselves.
+   *
+   * @return null if no row is deleted.
+   */
+  Compaction startCompaction() {
+    if (deletedRows == 0) {
+      return null;
+    }
+    final int[] kept = liveRows();
+    return new Compaction(
+            new File(file.getPath() + ".compact"), keptRows(kept, kept.length, false), changes);
+  }
+
+  /**
+   * Moves the file written by a compaction over the gallery file and maps it, unless the gallery
+   * changed since the compaction started.
+   *
+   * @return false, leaving the gallery unchanged, if the compaction is out of date.
+   */
+  boolean finishCompaction(final Compaction compaction) throws IOException {
+    if (compaction.changes != changes) {
+      return false;
+    }
+    GalleryFile.replace(compaction.file, file);
+    close();
+    open();
+    ++changes;
+    return true;
+  }
+
+  private int[] liveRows() {
+    final int[] kept = new int[rows - deletedRows];
+    for (int r = 0, count = 0; count < kept.length; ++r) {
+      if (rowIdentity[r] != DELETED) {
+        kept[count++] = r;
+      }
+    }
+    return kept;
+  }
+
+  // Marks every row of an identity deleted in memory, the caller writes the tables.
+  private boolean delete(final int id) {
+    boolean deleted = false;
+    for (int r = 0; r < rows; ++r) {
+      if (rowIdentity[r] == id) {
+        rowIdentity[r] = DELETED;
+        ++deletedRows;
+        deleted = true;
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * Caps the rows kept per identity like {@link EmbeddingGallery#setMaxShots}, rewriting the file
+   * if any identity is over the cap.
+   *
+   * @return true if rows were removed.
+   */
+  public boolean setMaxShots(final int shots) throws IOException {
+    maxShots = Math.max(0, shots);
+    if (maxShots == 0) {
+      return false;
+    }
+    final int[] counts = new int[identities.size()];
+    for (int r = 0; r < rows; ++r) {
+      if (rowIdentity[r] != DELETED) {
+        ++counts[rowIdentity[r]];
+      }
+    }
+    final int[] kept = new int[rows];
+    int count = 0;
+    for (int r = 0; r < rows; ++r) {
+      // Skips deleted rows, and the oldest rows of an identity until it is down to the cap.
+      if (rowIdentity[r] == DELETED) {
+        continue;
+      }
+      if (counts[rowIdentity[r]] > maxShots) {
+        --counts[rowIdentity[r]];
+      } else {
+        kept[count++] = r;
+      }
+    }
+    if (count == rows) {
+      return false;
+    }
+    rewrite(kept, count, false);
+    return true;
+  }
+
+  /**
+   * Scales every row to unit length, for cosine similarity, rewriting the file if any row was not.
+   *
+   * @return true if any row changed.
+   */
+  public boolean normalizeRows() throws IOException {
+    final int[] kept = new int[rows];
+    int count = 0;
+    boolean changed = false;
+    for (int r = 0; r < rows; ++r) {
+      if (rowIdentity[r] == DELETED) {
+        continue;
+      }
+      kept[count++] = r;
+      copyRow(r, row);
+      changed |= EmbeddingGallery.normalize(row, 0, dim);
+    }
+    if (changed) {
+      rewrite(kept, count, true);
+    }
+    return changed;
+  }
+
+  // Rewrites the file with the kept rows only, optionally normalized, and maps it again.
+  private void rewrite(final int[] kept, final int keptRows, final boolean normalize)
+          throws IOException {
+    GalleryFile.write(file, keptRows(kept, keptRows, normalize));
+    close();
+    open();
+    ++changes;
+  }
+
+  // The kept rows as a gallery of their own, optionally normalized. Names no kept row refers to
+  // are dropped, the others renumbered. It holds copies of the tables and the current mapping,
+  // so it can be written out while this gallery changes.
+  private GalleryFile.Source keptRows(
+          final int[] kept, final int keptRows, final boolean normalize) {
+    final FloatBuffer source = floats.duplicate();
+    final int[] ids = new int[identities.size()];
+    Arrays.fill(ids, DELETED);
+    final int[] keptIds = new int[keptRows];
+    final List<String> names = new ArrayList<>();
+    for (int r = 0; r < keptRows; ++r) {
+      final int id = rowIdentity[kept[r]];
+      if (ids[id] == DELETED) {
+        ids[id] = names.size();
+        names.add(identities.get(id));
+      }
+      keptIds[r] = ids[id];
+    }
+    return new GalleryFile.Source() {
+      private final float[] value = new float[dim];
+
+      public int getDimension() {
+        return dim;
+      }
+
+      public int size() {
+        return keptRows;
+      }
+
+      public int getRowIdentity(final int row) {
+        return keptIds[row];
+      }
+
+      public int getIdentityNameCount() {
+        return names.size();
+      }
+
+      public String getIdentityName(final int identity) {
+        return names.get(identity);
+      }
+
+      public void copyRows(final int firstRow, final FloatBuffer out) {
+        final FloatBuffer src = source.duplicate();
+        for (int r = firstRow; r < keptRows; ++r) {
+          src.limit((kept[r] + 1) * dim).position(kept[r] * dim);
+          if (normalize) {
+            src.get(value);
+            EmbeddingGallery.normalize(value, 0, dim);
+            out.put(value);
+          } else {
+            out.put(src);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Looks for the nearest embedding (using L2 norm).
+   *
+   * @param distance receives the distance of the returned row in its first element.
+   * @return the nearest row, or -1 if the gallery is empty.
+   */
+  public int findNearest(final float[] query, final float[] distance) {
+    return findNearest(l2, query, distance);
+  }
+
+  /** Same as {@link EmbeddingGallery.Snapshot#findNearest(DistanceKernel, float[], float[])}. */
+  int findNearest(final DistanceKernel kernel, final float[] query, final float[] distance) {
+    int best = -1;
+    float bestScore = Float.MAX_VALUE;
+    final FloatBuffer data = floats;
+    data.clear();
+    for (int r = 0; r < rows; ++r) {
+      if (rowIdentity[r] == DELETED) {
+        data.position(data.position() + dim);
+        continue;
+      }
+      // Bulk copy out of the mapping, so that the kernel runs over a plain array.
+      data.get(row, 0, dim);
+      final float score = kernel.score(row, 0, query, bestScore);
+      if (score < bestScore) {
+        bestScore = score;
+        best = r;
+      }
+    }
+    distance[0] = best < 0 ? Float.MAX_VALUE : kernel.toDistance(bestScore);
+    return best;
+  }
+
+  /**
+   * Same as {@link EmbeddingGallery.Snapshot#findNearest(DistanceKernel, float[], int,
+   * DistanceHeap)}.
+   */
+  void findNearest(
+          final DistanceKernel kernel, final float[] query, final int k, final DistanceHeap heap) {
+    final FloatBuffer data = floats;
+    data.clear();
+    for (int r = 0; r < rows; ++r) {
+      if (rowIdentity[r] == DELETED) {
+        data.position(data.position() + dim);
+        continue;
+      }
+      data.get(row, 0, dim);
+      final float bound = heap.size() < k ? Float.MAX_VALUE : heap.peekDistance();
+      final float score = kernel.score(row, 0, query, bound);
+      if (score < bound) {
+        heap.offer(rowIdentity[r], score, k);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+    raf.close();
+  }
+
+  /**
+   * Compaction in progress, see {@link #startCompaction}: the live rows as they were when it
+   * started, written to a file next to the gallery.
+   */
+  static final class Compaction {
+    private final File file;
+    private final GalleryFile.Source rows;
+    private final int changes;
+
+    private Compaction(final File file, final GalleryFile.Source rows, final int changes) {
+      this.file = file;
+      this.rows = rows;
+      this.changes = changes;
+    }
+
+    /** Writes the compacted file and maps it, for indexes to be built over it meanwhile. */
+    MappedEmbeddingGallery write() throws IOException {
+      GalleryFile.writeNew(file, rows);
+      return new MappedEmbeddingGallery(file, rows.getDimension());
+    }
+
+    /** Deletes the compacted file, if {@link #finishCompaction} did not move it. */
+    void discard() {
+      file.delete();
+    }
+  }
+}
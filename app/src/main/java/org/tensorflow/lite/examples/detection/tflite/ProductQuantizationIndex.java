@@ -0,0 +1,360 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Product quantization of the gallery rows.
+ *
+ * A row is split into {@code m} sub-vectors, each replaced by the index of its nearest centroid
+ * in a codebook of up to 256 entries trained with k-means, so a 192-d face takes {@code m}
+ * bytes. Queries are compared asymmetrically: a per-query table holds the squared distance of
+ * every query sub-vector to every centroid, and a row's distance is the sum of {@code m} table
+ * lookups. Optionally the best candidates are re-ranked with exact float distances. Not
+ * thread-safe.
+ */
+final class ProductQuantizationIndex implements GalleryIndex {
+
+  static final int DEFAULT_SUBSPACES = 24;
+  static final int DEFAULT_RERANK = 0;
+
+  static final int MAGIC = 0x50514958; // "PQIX"
+  private static final int VERSION = 1;
+  private static final int MAX_CENTROIDS = 256;
+  private static final int MAX_TRAINING_ROWS = 65536;
+  private static final int TRAINING_ITERATIONS = 20;
+  private static final long SEED = 42;
+
+  private EmbeddingRows rows;
+  private final int dim;
+  private final int m;
+  private final int subDim;
+  private final int centroids;
+  private final int rerank;
+  // codebooks: [m][centroids][subDim], flattened
+  private final float[] codebooks;
+
+  // codes: array of shape [capacity * m], row r starts at r * m
+  private byte[] codes;
+  private int size;
+
+  // Search state, reused between queries.
+  private final float[] table;
+  private final float[] row;
+  private final DistanceHeap candidates;
+
+  /**
+   * An empty index over the rows with codebooks from a {@link #trainer}.
+   *
+   * @param rerank candidates re-ranked with exact distances, 0 to rank by table distances only.
+   */
+  ProductQuantizationIndex(
+          final EmbeddingRows rows, final int m, final int rerank, final float[] codebooks) {
+    this.rows = rows;
+    this.dim = rows.getDimension();
+    this.m = m;
+    this.subDim = dim / m;
+    this.centroids = codebooks.length / dim;
+    this.rerank = rerank;
+    this.codebooks = codebooks;
+    this.codes = new byte[16 * m];
+    this.table = new float[m * centroids];
+    this.row = new float[dim];
+    this.candidates = new DistanceHeap(Math.max(1, rerank), true);
+  }
+
+  /**
+   * Trains {@code m} codebooks with k-means on a sample of the rows, to run on another thread
+   * while the gallery changes, see {@link KMeans.Sample}.
+   *
+   * @param m number of sub-vectors, and bytes per code; must divide the dimension.
+   */
+  static Trainer trainer(final EmbeddingRows rows, final int m) {
+    final int dim = rows.getDimension();
+    if (m <= 0 || dim % m != 0) {
+      throw new IllegalArgumentException(m + " sub-vectors do not divide dimension " + dim);
+    }
+    if (rows.size() == rows.getDeletedCount()) {
+      throw new IllegalStateException("Cannot train on an empty gallery");
+    }
+    final Random random = new Random(SEED);
+    return new Trainer(new KMeans.Sample(rows, MAX_TRAINING_ROWS, random), dim, m, random);
+  }
+
+  @Override
+  public void setRows(final EmbeddingRows rows) {
+    this.rows = rows;
+  }
+
+  /** Number of encoded rows. */
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /** Bytes per encoded row. */
+  int getCodeSize() {
+    return m;
+  }
+
+  /** Encodes the gallery rows added since the last call with the trained codebooks. */
+  @Override
+  public void addRows() {
+    addRows(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Same as above, at most {@code limit} rows. Deleted rows are passed over.
+   *
+   * @return whether every gallery row is encoded.
+   */
+  boolean addRows(final int limit) {
+    final int total = rows.size();
+    if (total * m > codes.length) {
+      codes = Arrays.copyOf(codes, Math.max(total, 2 * codes.length / m) * m);
+    }
+    final int end = Math.min(total, size + Math.max(0, limit));
+    for (; size < end; ++size) {
+      if (rows.getRowIdentity(size) == EmbeddingRows.DELETED) {
+        continue;
+      }
+      rows.copyRow(size, row);
+      for (int j = 0; j < m; ++j) {
+        final int code = KMeans.nearest(
+                codebooks, centroids, subDim, row, j * subDim, j * centroids * subDim);
+        codes[size * m + j] = (byte) code;
+      }
+    }
+    return size == total;
+  }
+
+  /**
+   * An empty index with the same codebooks over other rows, such as renumbered ones, to encode a
+   * step at a time with {@link #addRows(int)}.
+   */
+  ProductQuantizationIndex emptyCopy(final EmbeddingRows rows) {
+    return new ProductQuantizationIndex(rows, m, rerank, codebooks);
+  }
+
+  @Override
+  public ProductQuantizationIndex rebuild(final EmbeddingRows rows) {
+    final ProductQuantizationIndex index = emptyCopy(rows);
+    index.addRows();
+    return index;
+  }
+
+  /**
+   * Looks for the nearest row by table distance, re-ranked if enabled.
+   *
+   * @param distance receives the L2 distance of the returned row in its first element.
+   * @return the nearest row, or -1 if the index is empty.
+   */
+  @Override
+  public int findNearest(final float[] query, final float[] distance) {
+    computeTable(query);
+    if (rerank == 0) {
+      int best = -1;
+      float bestDistance = Float.MAX_VALUE;
+      for (int r = 0; r < size; ++r) {
+        if (rows.getRowIdentity(r) == EmbeddingRows.DELETED) {
+          continue;
+        }
+        final float d = tableDistance(r);
+        if (d < bestDistance) {
+          bestDistance = d;
+          best = r;
+        }
+      }
+      distance[0] = best < 0 ? Float.MAX_VALUE : (float) Math.sqrt(bestDistance);
+      return best;
+    }
+
+    scan(rerank);
+    int best = -1;
+    float bestDistance = Float.MAX_VALUE;
+    while (!candidates.isEmpty()) {
+      final int candidate = candidates.pop();
+      final float exact = rows.squaredDistance(candidate, query);
+      if (exact < bestDistance) {
+        bestDistance = exact;
+        best = candidate;
+      }
+    }
+    distance[0] = best < 0 ? Float.MAX_VALUE : (float) Math.sqrt(bestDistance);
+    return best;
+  }
+
+  /**
+   * Collects the {@code k} nearest identities into a max-heap keyed by identity index, with the
+   * squared table distance, or the exact one when re-ranking.
+   */
+  @Override
+  public void findNearest(final float[] query, final int k, final DistanceHeap heap) {
+    computeTable(query);
+    if (rerank == 0) {
+      for (int r = 0; r < size; ++r) {
+        final int identity = rows.getRowIdentity(r);
+        if (identity != EmbeddingRows.DELETED) {
+          heap.offer(identity, tableDistance(r), k);
+        }
+      }
+      return;
+    }
+    scan(Math.max(rerank, 4 * k));
+    while (!candidates.isEmpty()) {
+      final int candidate = candidates.pop();
+      heap.offer(rows.getRowIdentity(candidate), rows.squaredDistance(candidate, query), k);
+    }
+  }
+
+  // Squared distance of every query sub-vector to every centroid of its codebook.
+  private void computeTable(final float[] query) {
+    for (int j = 0; j < m; ++j) {
+      final int queryOffset = j * subDim;
+      for (int c = 0; c < centroids; ++c) {
+        final int base = (j * centroids + c) * subDim;
+        float sum = 0;
+        for (int d = 0; d < subDim; ++d) {
+          final float diff = query[queryOffset + d] - codebooks[base + d];
+          sum += diff * diff;
+        }
+        table[j * centroids + c] = sum;
+      }
+    }
+  }
+
+  private float tableDistance(final int r) {
+    final byte[] data = codes;
+    final float[] lookup = table;
+    final int offset = r * m;
+    float sum = 0;
+    for (int j = 0, base = 0; j < m; ++j, base += centroids) {
+      sum += lookup[base + (data[offset + j] & 0xff)];
+    }
+    return sum;
+  }
+
+  // Keeps the n rows with the smallest table distance in candidates.
+  private void scan(final int n) {
+    candidates.clear();
+    for (int r = 0; r < size; ++r) {
+      if (rows.getRowIdentity(r) == EmbeddingRows.DELETED) {
+        continue;
+      }
+      final float estimate = tableDistance(r);
+      if (candidates.size() < n) {
+        candidates.push(r, estimate);
+      } else if (estimate < candidates.peekDistance()) {
+        candidates.pop();
+        candidates.push(r, estimate);
+      }
+    }
+  }
+
+  /** Writes the codebooks and the codes; the vectors themselves stay in the gallery. */
+  void write(final DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(dim);
+    out.writeInt(m);
+    out.writeInt(centroids);
+    for (final float value : codebooks) {
+      out.writeFloat(value);
+    }
+    out.writeInt(size);
+    out.write(codes, 0, size * m);
+  }
+
+  /**
+   * Reads an index written by {@link #write}. The gallery must start with the rows the codes
+   * were computed for, in the same order; newer rows are encoded on load.
+   */
+  static ProductQuantizationIndex read(
+          final DataInputStream in, final EmbeddingRows rows, final int rerank)
+          throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a product quantization index");
+    }
+    final int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported product quantization index version " + version);
+    }
+    final int dim = in.readInt();
+    if (dim != rows.getDimension()) {
+      throw new IOException(
+              "Index dimension " + dim + " does not match gallery " + rows.getDimension());
+    }
+    final int m = in.readInt();
+    final int centroids = in.readInt();
+    final float[] codebooks = new float[m * centroids * (dim / m)];
+    for (int i = 0; i < codebooks.length; ++i) {
+      codebooks[i] = in.readFloat();
+    }
+    final ProductQuantizationIndex index =
+            new ProductQuantizationIndex(rows, m, rerank, codebooks);
+    final int count = in.readInt();
+    if (count > rows.size()) {
+      throw new IOException("Index has " + count + " codes, gallery only " + rows.size());
+    }
+    index.codes = new byte[Math.max(16, count) * m];
+    in.readFully(index.codes, 0, count * m);
+    index.size = count;
+    index.addRows();
+    return index;
+  }
+
+  /** Per-subspace k-means over a sample of the rows, see {@link KMeans.Sample}. */
+  static final class Trainer implements Callable<float[]> {
+    private final KMeans.Sample sample;
+    private final int dim;
+    private final int m;
+    private final Random random;
+
+    private Trainer(
+            final KMeans.Sample sample, final int dim, final int m, final Random random) {
+      this.sample = sample;
+      this.dim = dim;
+      this.m = m;
+      this.random = random;
+    }
+
+    /** Runs k-means on every subspace and returns the codebooks, [m][centroids][subDim]. */
+    @Override
+    public float[] call() {
+      final float[] values = sample.get();
+      final int n = values.length / dim;
+      final int subDim = dim / m;
+      final int centroids = Math.min(MAX_CENTROIDS, n);
+      final float[] codebooks = new float[m * centroids * subDim];
+      final float[] sub = new float[n * subDim];
+      for (int j = 0; j < m; ++j) {
+        for (int i = 0; i < n; ++i) {
+          System.arraycopy(values, i * dim + j * subDim, sub, i * subDim, subDim);
+        }
+        final float[] trained =
+                KMeans.train(sub, n, subDim, centroids, TRAINING_ITERATIONS, random);
+        System.arraycopy(trained, 0, codebooks, j * centroids * subDim, centroids * subDim);
+      }
+      return codebooks;
+    }
+  }
+}
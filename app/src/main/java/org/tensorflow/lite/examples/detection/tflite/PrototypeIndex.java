@@ -0,0 +1,218 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+
+/**
+ * Per-identity prototypes over the gallery rows.
+ *
+ * Every identity is summarized by the mean of its rows, and keeps the list of those rows. A query
+ * is first compared with the prototypes only, and the member rows of the {@code probe} nearest
+ * identities are then scanned with exact float distances, so the cost follows the number of
+ * identities rather than the number of shots. Rows are added to their identity incrementally,
+ * and deleted rows leave it, its prototype averaged again over the rows left; renumbered rows
+ * need a fresh index. Not thread-safe.
+ */
+final class PrototypeIndex implements GalleryIndex {
+
+  static final int DEFAULT_PROBE = 8;
+
+  private EmbeddingRows rows;
+  private final int dim;
+  private final DistanceKernel l2;
+  private int probe;
+
+  // prototypes: array of shape [identities * dim], the running mean of identity i at i * dim
+  private float[] prototypes;
+  // Rows of each identity, members[i][0..counts[i]).
+  private int[][] members;
+  private int[] counts;
+  private int identities;
+  private int size;
+  // Deleted rows of the gallery already taken out of the member lists.
+  private int deleted;
+
+  // Search state, reused between queries.
+  private final float[] row;
+  private final DistanceHeap probes;
+
+  PrototypeIndex(final EmbeddingRows rows, final int probe) {
+    this.rows = rows;
+    this.dim = rows.getDimension();
+    this.prototypes = new float[16 * dim];
+    this.members = new int[16][];
+    this.counts = new int[16];
+    this.row = new float[dim];
+    this.l2 = DistanceKernel.create(SimilarityClassifier.Metric.EUCLIDEAN, dim);
+    this.probes = new DistanceHeap(Math.max(1, probe), true);
+    setProbe(probe);
+    addRows();
+  }
+
+  @Override
+  public void setRows(final EmbeddingRows rows) {
+    this.rows = rows;
+  }
+
+  /** Sets how many of the nearest identities a query expands, the recall and cost grow with it. */
+  void setProbe(final int probe) {
+    this.probe = Math.max(1, probe);
+  }
+
+  @Override
+  public PrototypeIndex rebuild(final EmbeddingRows rows) {
+    return new PrototypeIndex(rows, probe);
+  }
+
+  /** Number of rows assigned to an identity. */
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Takes the rows deleted since the last call out of their identity, then adds the rows added
+   * since to their identity and its prototype.
+   */
+  @Override
+  public void addRows() {
+    if (rows.getDeletedCount() != deleted) {
+      removeDeleted();
+    }
+    final int total = rows.size();
+    for (; size < total; ++size) {
+      final int identity = rows.getRowIdentity(size);
+      if (identity == EmbeddingRows.DELETED) {
+        continue;
+      }
+      if (identity >= counts.length) {
+        final int capacity = Math.max(identity + 1, 2 * counts.length);
+        prototypes = Arrays.copyOf(prototypes, capacity * dim);
+        members = Arrays.copyOf(members, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+      }
+      identities = Math.max(identities, identity + 1);
+
+      int[] list = members[identity];
+      if (list == null) {
+        list = members[identity] = new int[4];
+      } else if (counts[identity] == list.length) {
+        list = members[identity] = Arrays.copyOf(list, 2 * list.length);
+      }
+      list[counts[identity]++] = size;
+
+      rows.copyRow(size, row);
+      final float weight = 1f / counts[identity];
+      for (int d = 0, base = identity * dim; d < dim; ++d) {
+        prototypes[base + d] += (row[d] - prototypes[base + d]) * weight;
+      }
+    }
+  }
+
+  /**
+   * Looks for the nearest row among the members of the probed identities.
+   *
+   * @param distance receives the L2 distance of the returned row in its first element.
+   * @return the nearest row, or -1 if the index is empty.
+   */
+  @Override
+  public int findNearest(final float[] query, final float[] distance) {
+    probe(query, probe);
+    int best = -1;
+    float bestDistance = Float.MAX_VALUE;
+    while (!probes.isEmpty()) {
+      final int identity = probes.pop();
+      final int[] list = members[identity];
+      for (int i = 0, n = counts[identity]; i < n; ++i) {
+        final float d = rows.squaredDistance(list[i], query);
+        if (d < bestDistance) {
+          bestDistance = d;
+          best = list[i];
+        }
+      }
+    }
+    distance[0] = best < 0 ? Float.MAX_VALUE : (float) Math.sqrt(bestDistance);
+    return best;
+  }
+
+  /**
+   * Collects the {@code k} nearest identities into a max-heap keyed by identity index, with the
+   * squared L2 distance of each identity's closest row. At least {@code k} identities are probed.
+   */
+  @Override
+  public void findNearest(final float[] query, final int k, final DistanceHeap heap) {
+    probe(query, Math.max(probe, k));
+    while (!probes.isEmpty()) {
+      final int identity = probes.pop();
+      final int[] list = members[identity];
+      for (int i = 0, n = counts[identity]; i < n; ++i) {
+        heap.offer(identity, rows.squaredDistance(list[i], query), k);
+      }
+    }
+  }
+
+  // Drops deleted rows from the member lists, recomputing the prototypes of the identities that
+  // lost any.
+  private void removeDeleted() {
+    deleted = rows.getDeletedCount();
+    for (int identity = 0; identity < identities; ++identity) {
+      final int[] list = members[identity];
+      final int count = counts[identity];
+      int kept = 0;
+      for (int i = 0; i < count; ++i) {
+        if (rows.getRowIdentity(list[i]) != EmbeddingRows.DELETED) {
+          list[kept++] = list[i];
+        }
+      }
+      if (kept == count) {
+        continue;
+      }
+      counts[identity] = kept;
+      final int base = identity * dim;
+      Arrays.fill(prototypes, base, base + dim, 0);
+      for (int i = 0; i < kept; ++i) {
+        rows.copyRow(list[i], row);
+        for (int d = 0; d < dim; ++d) {
+          prototypes[base + d] += row[d];
+        }
+      }
+      for (int d = 0; kept > 0 && d < dim; ++d) {
+        prototypes[base + d] /= kept;
+      }
+    }
+  }
+
+  // Keeps the n identities whose prototypes are nearest to the query in probes.
+  private void probe(final float[] query, final int n) {
+    probes.clear();
+    for (int i = 0, base = 0; i < identities; ++i, base += dim) {
+      if (counts[i] == 0) {
+        // Name left in the identity table by a deletion.
+        continue;
+      }
+      final float bound = probes.size() < n ? Float.MAX_VALUE : probes.peekDistance();
+      final float d = l2.score(prototypes, base, query, bound);
+      if (d >= bound) {
+        continue;
+      }
+      if (probes.size() == n) {
+        probes.pop();
+      }
+      probes.push(i, d);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+
+/**
+ * int8 copy of the gallery rows, scanned with integer dot products.
+ *
+ * Every row is stored as bytes with its own scale ({@code max |x| / 127}) and its squared norm,
+ * so the squared distance to a query is estimated as
+ * {@code |q|^2 + |x|^2 - 2 * scaleQ * scaleX * dot(codesQ, codesX)}. The best candidates of that
+ * scan are re-ranked with exact float distances read from the gallery. Over a heap gallery the
+ * codes add a quarter of its float size, for speed only; over the mapped one they are all that
+ * lives on the heap. Not thread-safe.
+ */
+final class QuantizedIndex implements GalleryIndex {
+
+  static final int DEFAULT_RERANK = 32;
+
+  private EmbeddingRows rows;
+  private final int dim;
+  private final int rerank;
+
+  // codes: array of shape [capacity * dim], row r starts at r * dim
+  private byte[] codes;
+  private float[] scales;
+  private float[] norms;
+  private int size;
+
+  // Search state, reused between queries.
+  private final byte[] queryCodes;
+  private final float[] row;
+  private final DistanceHeap candidates;
+
+  /** @param rerank Number of candidates of the integer scan re-ranked with float distances. */
+  QuantizedIndex(final EmbeddingRows rows, final int rerank) {
+    this.rows = rows;
+    this.dim = rows.getDimension();
+    this.rerank = Math.max(1, rerank);
+    this.codes = new byte[16 * dim];
+    this.scales = new float[16];
+    this.norms = new float[16];
+    this.queryCodes = new byte[dim];
+    this.row = new float[dim];
+    this.candidates = new DistanceHeap(this.rerank, true);
+    addRows();
+  }
+
+  @Override
+  public void setRows(final EmbeddingRows rows) {
+    this.rows = rows;
+  }
+
+  @Override
+  public QuantizedIndex rebuild(final EmbeddingRows rows) {
+    return new QuantizedIndex(rows, rerank);
+  }
+
+  /** Number of quantized rows. */
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /** Quantizes the gallery rows added since the last call. */
+  @Override
+  public void addRows() {
+    final int total = rows.size();
+    if (total > scales.length) {
+      final int capacity = Math.max(total, scales.length * 2);
+      codes = Arrays.copyOf(codes, capacity * dim);
+      scales = Arrays.copyOf(scales, capacity);
+      norms = Arrays.copyOf(norms, capacity);
+    }
+    for (; size < total; ++size) {
+      rows.copyRow(size, row);
+      scales[size] = quantize(row, codes, size * dim);
+      float norm = 0;
+      for (int i = 0; i < dim; ++i) {
+        norm += row[i] * row[i];
+      }
+      norms[size] = norm;
+    }
+  }
+
+  /**
+   * Looks for the nearest row: integer scan, then float re-ranking of the best candidates.
+   *
+   * @param distance receives the L2 distance of the returned row in its first element.
+   * @return the nearest row, or -1 if the index is empty.
+   */
+  @Override
+  public int findNearest(final float[] query, final float[] distance) {
+    scan(query, rerank);
+    int best = -1;
+    float bestDistance = Float.MAX_VALUE;
+    while (!candidates.isEmpty()) {
+      final int candidate = candidates.pop();
+      final float exact = rows.squaredDistance(candidate, query);
+      if (exact < bestDistance) {
+        bestDistance = exact;
+        best = candidate;
+      }
+    }
+    distance[0] = best < 0 ? Float.MAX_VALUE : (float) Math.sqrt(bestDistance);
+    return best;
+  }
+
+  /**
+   * Collects the {@code k} nearest identities into a max-heap keyed by identity index, with the
+   * exact squared L2 distance of each identity's closest re-ranked row.
+   */
+  @Override
+  public void findNearest(final float[] query, final int k, final DistanceHeap heap) {
+    scan(query, Math.max(rerank, 4 * k));
+    while (!candidates.isEmpty()) {
+      final int candidate = candidates.pop();
+      heap.offer(rows.getRowIdentity(candidate), rows.squaredDistance(candidate, query), k);
+    }
+  }
+
+  // Keeps the n rows with the smallest estimated distance in candidates.
+  private void scan(final float[] query, final int n) {
+    candidates.clear();
+    final float queryScale = quantize(query, queryCodes, 0);
+    float queryNorm = 0;
+    for (int i = 0; i < dim; ++i) {
+      queryNorm += query[i] * query[i];
+    }
+    final byte[] data = codes;
+    final byte[] q = queryCodes;
+    for (int r = 0, offset = 0; r < size; ++r, offset += dim) {
+      if (rows.getRowIdentity(r) == EmbeddingRows.DELETED) {
+        continue;
+      }
+      int dot = 0;
+      for (int i = 0; i < dim; ++i) {
+        dot += q[i] * data[offset + i];
+      }
+      final float estimate = queryNorm + norms[r] - 2 * queryScale * scales[r] * dot;
+      if (candidates.size() < n) {
+        candidates.push(r, estimate);
+      } else if (estimate < candidates.peekDistance()) {
+        candidates.pop();
+        candidates.push(r, estimate);
+      }
+    }
+  }
+
+  // Writes the int8 codes of values at out[offset] and returns their scale.
+  private static float quantize(final float[] values, final byte[] out, final int offset) {
+    final int dim = values.length;
+    float max = 0;
+    for (int i = 0; i < dim; ++i) {
+      max = Math.max(max, Math.abs(values[i]));
+    }
+    if (max == 0) {
+      Arrays.fill(out, offset, offset + dim, (byte) 0);
+      return 0;
+    }
+    final float inverse = 127 / max;
+    for (int i = 0; i < dim; ++i) {
+      out[offset + i] = (byte) Math.round(values[i] * inverse);
+    }
+    return max / 127;
+  }
+}
@@ -0,0 +1,226 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.io.Closeable;
+
+/**
+ * Exact gallery scan split into contiguous shards of rows, searched concurrently.
+ *
+ * The calling thread scans the first shard while parked worker threads scan the others, then the
+ * per-shard results are merged. Threads, heaps and result slots are created once and handed the
+ * work through a monitor, so a search allocates nothing. One search at a time.
+ */
+final class ShardedSearch implements Closeable {
+
+  private final Shard[] shards;
+  private final Thread[] threads;
+
+  private final Object lock = new Object();
+  // Bumped to start a search, guarded by lock.
+  private int generation;
+  // Worker shards of the current search that are still running, guarded by lock.
+  private int pending;
+  private boolean closed;
+  // First exception thrown by a worker during the current search, guarded by lock.
+  private RuntimeException failure;
+
+  // Current search, published to the workers by the generation bump.
+  private EmbeddingGallery.Snapshot gallery;
+  private float[] query;
+  private DistanceKernel kernel;
+  // 0 looks for the nearest row, otherwise for the k nearest identities.
+  private int k;
+
+  /** @param shards number of shards, one of which is scanned by the calling thread. */
+  ShardedSearch(final int shards) {
+    this.shards = new Shard[Math.max(1, shards)];
+    this.threads = new Thread[this.shards.length - 1];
+    for (int i = 0; i < this.shards.length; ++i) {
+      this.shards[i] = new Shard(i);
+    }
+    for (int i = 0; i < threads.length; ++i) {
+      final Shard shard = this.shards[i + 1];
+      threads[i] = new Thread(() -> work(shard), "gallery-search-" + shard.index);
+      threads[i].setDaemon(true);
+      threads[i].start();
+    }
+  }
+
+  /**
+   * Same result as {@link EmbeddingGallery.Snapshot#findNearest(DistanceKernel, float[],
+   * float[])}.
+   */
+  int findNearest(
+          final EmbeddingGallery.Snapshot gallery,
+          final DistanceKernel kernel,
+          final float[] query,
+          final float[] distance) {
+    run(gallery, kernel, query, 0);
+    int best = -1;
+    float bestScore = Float.MAX_VALUE;
+    for (final Shard shard : shards) {
+      if (shard.best >= 0 && shard.score < bestScore) {
+        bestScore = shard.score;
+        best = shard.best;
+      }
+    }
+    distance[0] = best < 0 ? Float.MAX_VALUE : kernel.toDistance(bestScore);
+    return best;
+  }
+
+  /**
+   * Same result as {@link EmbeddingGallery.Snapshot#findNearest(DistanceKernel, float[], int,
+   * DistanceHeap)}.
+   */
+  void findNearest(
+          final EmbeddingGallery.Snapshot gallery,
+          final DistanceKernel kernel,
+          final float[] query,
+          final int k,
+          final DistanceHeap heap) {
+    run(gallery, kernel, query, k);
+    for (final Shard shard : shards) {
+      final DistanceHeap shardHeap = shard.heap;
+      while (!shardHeap.isEmpty()) {
+        final int id = shardHeap.peekId();
+        final float distance = shardHeap.peekDistance();
+        shardHeap.pop();
+        heap.offer(id, distance, k);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      lock.notifyAll();
+    }
+  }
+
+  // Scans every shard, the first one on the calling thread, and waits for the others.
+  private void run(
+          final EmbeddingGallery.Snapshot gallery,
+          final DistanceKernel kernel,
+          final float[] query,
+          final int k) {
+    this.gallery = gallery;
+    this.kernel = kernel;
+    this.query = query;
+    this.k = k;
+    synchronized (lock) {
+      if (closed) {
+        throw new IllegalStateException("Search is closed");
+      }
+      pending = threads.length;
+      ++generation;
+      lock.notifyAll();
+    }
+    RuntimeException error = null;
+    try {
+      shards[0].scan();
+    } catch (final RuntimeException e) {
+      error = e;
+    }
+
+    boolean interrupted = false;
+    synchronized (lock) {
+      while (pending > 0) {
+        try {
+          lock.wait();
+        } catch (final InterruptedException e) {
+          // The workers still use the search state, keep waiting for them.
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (lock) {
+      if (error == null) {
+        error = failure;
+      }
+      failure = null;
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private void work(final Shard shard) {
+    int seen = 0;
+    while (true) {
+      synchronized (lock) {
+        while (generation == seen && !closed) {
+          try {
+            lock.wait();
+          } catch (final InterruptedException e) {
+            return;
+          }
+        }
+        if (closed) {
+          return;
+        }
+        seen = generation;
+      }
+      RuntimeException error = null;
+      try {
+        shard.scan();
+      } catch (final RuntimeException e) {
+        // Reported to the caller, the worker stays available for the next search.
+        error = e;
+      }
+      synchronized (lock) {
+        if (error != null && failure == null) {
+          failure = error;
+        }
+        if (--pending == 0) {
+          lock.notifyAll();
+        }
+      }
+    }
+  }
+
+  /** One contiguous range of rows and its result. */
+  private final class Shard {
+    private final int index;
+    private final DistanceHeap heap = new DistanceHeap(8, true);
+    private final float[] value = new float[1];
+
+    // Nearest row of the shard and its kernel score, for k == 0.
+    private int best;
+    private float score;
+
+    Shard(final int index) {
+      this.index = index;
+    }
+
+    void scan() {
+      final int rows = gallery.size();
+      final int first = (int) ((long) rows * index / shards.length);
+      final int end = (int) ((long) rows * (index + 1) / shards.length);
+      if (k > 0) {
+        heap.clear();
+        gallery.findNearest(kernel, query, k, heap, first, end);
+        return;
+      }
+      best = gallery.findNearest(kernel, query, first, end, value);
+      score = value[0];
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Random-hyperplane signatures of the gallery rows, scanned by Hamming distance.
+ *
+ * Bit {@code b} of a row's signature is the side of the row on the b-th random hyperplane through
+ * the origin, so two rows differ in a fraction of the bits proportional to the angle between
+ * them. A query ranks the rows by {@link Long#bitCount} of the XORed signatures, a few integer
+ * operations per 64 bits, and re-scores the best candidates with exact float distances read from
+ * the gallery. Nothing needs training or building beyond hashing each row once. Not thread-safe.
+ */
+final class SignHashIndex implements GalleryIndex {
+
+  static final int DEFAULT_BITS = 256;
+  static final int DEFAULT_CANDIDATES = 256;
+
+  private static final long SEED = 42;
+
+  private EmbeddingRows rows;
+  private final int dim;
+  private final int words;
+  private final int candidates;
+  // planes: array of shape [words * 64 * dim], hyperplane b starts at b * dim
+  private final float[] planes;
+
+  // signatures: array of shape [capacity * words], row r starts at r * words
+  private long[] signatures;
+  private int size;
+
+  // Search state, reused between queries.
+  private final long[] querySignature;
+  private final float[] row;
+  private final DistanceHeap heap;
+
+  /**
+   * @param bits signature length, rounded up to a multiple of 64.
+   * @param candidates rows of the Hamming scan re-scored with exact distances.
+   */
+  SignHashIndex(final EmbeddingRows rows, final int bits, final int candidates) {
+    this.rows = rows;
+    this.dim = rows.getDimension();
+    this.words = Math.max(1, (bits + 63) / 64);
+    this.candidates = Math.max(1, candidates);
+    this.planes = new float[words * 64 * dim];
+    final Random random = new Random(SEED);
+    for (int i = 0; i < planes.length; ++i) {
+      planes[i] = (float) random.nextGaussian();
+    }
+    this.signatures = new long[16 * words];
+    this.querySignature = new long[words];
+    this.row = new float[dim];
+    this.heap = new DistanceHeap(this.candidates, true);
+    addRows();
+  }
+
+  @Override
+  public void setRows(final EmbeddingRows rows) {
+    this.rows = rows;
+  }
+
+  @Override
+  public SignHashIndex rebuild(final EmbeddingRows rows) {
+    return new SignHashIndex(rows, words * 64, candidates);
+  }
+
+  /** Number of hashed rows. */
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /** Hashes the gallery rows added since the last call. */
+  @Override
+  public void addRows() {
+    final int total = rows.size();
+    if (total * words > signatures.length) {
+      final int capacity = Math.max(total, 2 * signatures.length / words);
+      signatures = Arrays.copyOf(signatures, capacity * words);
+    }
+    for (; size < total; ++size) {
+      rows.copyRow(size, row);
+      hash(row, signatures, size * words);
+    }
+  }
+
+  /**
+   * Looks for the nearest row: Hamming scan, then exact re-scoring of the best candidates.
+   *
+   * @param distance receives the L2 distance of the returned row in its first element.
+   * @return the nearest row, or -1 if the index is empty.
+   */
+  @Override
+  public int findNearest(final float[] query, final float[] distance) {
+    scan(query, candidates);
+    int best = -1;
+    float bestDistance = Float.MAX_VALUE;
+    while (!heap.isEmpty()) {
+      final int candidate = heap.pop();
+      final float exact = rows.squaredDistance(candidate, query);
+      if (exact < bestDistance) {
+        bestDistance = exact;
+        best = candidate;
+      }
+    }
+    distance[0] = best < 0 ? Float.MAX_VALUE : (float) Math.sqrt(bestDistance);
+    return best;
+  }
+
+  /**
+   * Collects the {@code k} nearest identities into a max-heap keyed by identity index, with the
+   * exact squared L2 distance of each identity's closest re-scored row.
+   */
+  @Override
+  public void findNearest(final float[] query, final int k, final DistanceHeap out) {
+    scan(query, Math.max(candidates, 4 * k));
+    while (!heap.isEmpty()) {
+      final int candidate = heap.pop();
+      out.offer(rows.getRowIdentity(candidate), rows.squaredDistance(candidate, query), k);
+    }
+  }
+
+  // Writes the signature of one vector into out[offset..offset + words).
+  private void hash(final float[] vector, final long[] out, final int offset) {
+    for (int w = 0; w < words; ++w) {
+      long bits = 0;
+      for (int b = 0, plane = (w * 64) * dim; b < 64; ++b, plane += dim) {
+        if (DistanceKernel.dot(planes, plane, vector, dim) > 0) {
+          bits |= 1L << b;
+        }
+      }
+      out[offset + w] = bits;
+    }
+  }
+
+  // Keeps the n rows with the smallest Hamming distance to the query in heap.
+  private void scan(final float[] query, final int n) {
+    heap.clear();
+    hash(query, querySignature, 0);
+    final long[] data = signatures;
+    final long[] q = querySignature;
+    // Hamming distance a row must stay under to enter the heap, once it is full.
+    int bound = Integer.MAX_VALUE;
+    for (int r = 0, offset = 0; r < size; ++r, offset += words) {
+      if (rows.getRowIdentity(r) == EmbeddingRows.DELETED) {
+        continue;
+      }
+      int hamming = 0;
+      for (int w = 0; w < words; ++w) {
+        hamming += Long.bitCount(q[w] ^ data[offset + w]);
+      }
+      if (hamming >= bound) {
+        continue;
+      }
+      if (heap.size() == n) {
+        heap.pop();
+      }
+      heap.push(r, hamming);
+      if (heap.size() == n) {
+        bound = (int) heap.peekDistance();
+      }
+    }
+  }
+}
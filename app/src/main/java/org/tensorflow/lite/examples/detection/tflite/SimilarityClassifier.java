@@ -17,15 +17,170 @@ package org.tensorflow.lite.examples.detection.tflite;
 
 import android.graphics.Bitmap;
 import android.graphics.RectF;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import org.tensorflow.lite.examples.detection.env.YuvFaceSampler;
 
 /** Generic interface for interacting with different recognition engines. */
 public interface SimilarityClassifier {
 
+  /**
+   * Stores the embeddings of a recognition under the given name, replacing any stored under it
+   * before. Safe to call from any thread while recognition runs; searches pick the new rows up on
+   * their next call.
+   */
   void register(String name, Recognition recognition);
 
+  /**
+   * Like {@link #register}, for a name that is already registered only: searches see either the
+   * old or the new embeddings, never both or none.
+   *
+   * @return false, storing nothing, if the name is not registered.
+   */
+  boolean replace(String name, Recognition recognition);
+
+  /**
+   * Deletes every embedding of the given name; searches stop matching it on their next call. The
+   * space of deleted embeddings is reclaimed in the background once enough have accumulated.
+   *
+   * @return false if the name is not registered.
+   */
+  boolean unregister(String name);
+
+  /**
+   * Loads the gallery saved in the file, if it exists, in place of the faces registered so far,
+   * and keeps the file up to date with every later registration.
+   */
+  void setGalleryFile(File file) throws IOException;
+
+  /**
+   * Like {@link #setGalleryFile(File)}; with {@code memoryMapped} the embeddings stay in the
+   * mapped file and are searched there instead of being loaded onto the heap.
+   */
+  void setGalleryFile(File file, boolean memoryMapped) throws IOException;
+
   List<Recognition> recognizeImage(Bitmap bitmap, boolean getExtra);
 
+  /**
+   * Allocation free variant of {@link #recognizeImage(Bitmap, boolean)}: writes the nearest
+   * identity, its distance and the embedding into a holder the caller reuses across frames.
+   */
+  void recognizeImage(Bitmap bitmap, RecognitionResult result);
+
+  /**
+   * Recognizes several face crops with a single model invocation. Returns one recognition per
+   * bitmap, in the same order.
+   */
+  List<Recognition> recognizeImages(List<Bitmap> bitmaps, boolean getExtra);
+
+  /**
+   * Recognizes faces sampled straight from a camera frame, without intermediate bitmaps. Returns
+   * one recognition per box, in the same order.
+   *
+   * @param frame YUV frame, with the orientation faces are recognized in.
+   * @param boxes Face bounding boxes in frame coordinates.
+   */
+  List<Recognition> recognizeFaces(YuvFaceSampler frame, List<RectF> boxes, boolean getExtra);
+
+  /**
+   * Recognizes the face in the bitmap and returns up to {@code k} distinct registered identities,
+   * nearest first.
+   */
+  List<Recognition> recognizeTopK(Bitmap bitmap, int k);
+
+  /**
+   * Search-only variant of {@link #recognizeTopK}: finds the registered identities nearest to an
+   * embedding without running the model.
+   *
+   * @param names receives the identity names, nearest first.
+   * @param distances receives the matching distances.
+   * @return the number of identities written, at most {@code k} and the array lengths.
+   */
+  int findNearest(float[] embedding, int k, String[] names, float[] distances);
+
+  /**
+   * Search-only variant of {@link #recognizeImages}: finds the nearest registered identity of
+   * every embedding, such as all faces of a frame. An exactly scanned gallery is read once for
+   * all of them rather than once per face.
+   *
+   * @param names receives the identity of each embedding, null if the gallery is empty.
+   * @param distances receives the matching distances.
+   */
+  void findNearest(float[][] embeddings, String[] names, float[] distances);
+
+  /**
+   * Selects how the gallery is searched. Backends that cannot be built yet, such as a product
+   * quantizer over too few faces, fall back to the exact scan until they can.
+   */
+  void setSearchBackend(SearchBackend backend);
+
+  /**
+   * Selects how embeddings are compared, and the distance kernel of the exact scans. Reported
+   * distances stay "lower is closer" in every metric.
+   */
+  void setMetric(Metric metric);
+
+  /**
+   * Caps the embeddings kept per identity. Registrations with more shots keep their last
+   * {@code shots}, and identities already over the cap lose their oldest ones. 0 removes the cap.
+   */
+  void setMaxShotsPerIdentity(int shots);
+
+  /** Embedding comparison metrics. */
+  enum Metric {
+    /** L2 distance between the raw embeddings. */
+    EUCLIDEAN,
+    /**
+     * Cosine similarity: embeddings are normalized when registered and queried, ranked by dot
+     * product, and reported as the L2 distance between the unit vectors, {@code sqrt(2 - 2 cos)}.
+     */
+    COSINE,
+    /**
+     * Raw dot product, for models trained with it, reported as {@code 1 - dot}: lower is closer
+     * at any embedding length, and the distance goes negative for dot products above 1. A
+     * distance threshold {@code t} thus accepts dot products above {@code 1 - t}; thresholds
+     * tuned for the L2 distances of the other metrics do not carry over. Always searched
+     * exactly, as the approximate backends rank by L2 distance.
+     */
+    INNER_PRODUCT
+  }
+
+  /** Gallery search strategies, trading accuracy for memory and speed. */
+  enum SearchBackend {
+    /** Exact scan, switching to an HNSW graph above the approximate search threshold. */
+    AUTO,
+    /**
+     * int8 copy of the gallery, best candidates re-ranked with float distances. A speed option:
+     * the float rows are kept for the re-ranking, so a heap gallery grows by about a quarter,
+     * and only a memory-mapped one keeps no more than the codes on the heap.
+     */
+    INT8,
+    /**
+     * Product-quantized codes of a few bytes per face, compared through lookup tables. The
+     * codebooks are trained in the background once there are a few thousand faces, which are
+     * scanned exactly until then.
+     */
+    PRODUCT_QUANTIZATION,
+    /** Faces partitioned into k-means lists, only the lists nearest to the query are scanned. */
+    IVF,
+    /**
+     * Identities compared by the mean of their shots first, only the shots of the nearest
+     * identities are scanned.
+     */
+    PROTOTYPE,
+    /**
+     * Random-hyperplane bit signatures ranked by Hamming distance, the best candidates re-scored
+     * with float distances. Needs no training nor graph building.
+     */
+    LSH,
+    /**
+     * Exact scan over a half-precision copy of the gallery, half the bytes of the float one. With
+     * a memory-mapped gallery only that copy is kept on the heap.
+     */
+    FLOAT16
+  }
+
   void enableStatLogging(final boolean debug);
 
   String getStatString();
@@ -134,4 +289,40 @@ public interface SimilarityClassifier {
       return this.crop;
     }
   }
+
+  /**
+   * Mutable recognition result filled in place by {@link #recognizeImage(Bitmap,
+   * RecognitionResult)}. Every call overwrites the previous values.
+   */
+  public class RecognitionResult {
+    /** Display name of the nearest identity, "?" if nothing is registered. */
+    private String title;
+
+    /** Distance to the nearest identity. Lower is better. */
+    private float distance = Float.MAX_VALUE;
+
+    /** Embedding computed for the image, reused between calls. */
+    private float[] embedding;
+
+    public String getTitle() {
+      return title;
+    }
+
+    public float getDistance() {
+      return distance;
+    }
+
+    public float[] getEmbedding() {
+      return embedding;
+    }
+
+    void set(final String title, final float distance, final float[] embedding) {
+      this.title = title;
+      this.distance = distance;
+      if (this.embedding == null || this.embedding.length != embedding.length) {
+        this.embedding = new float[embedding.length];
+      }
+      System.arraycopy(embedding, 0, this.embedding, 0, embedding.length);
+    }
+  }
 }
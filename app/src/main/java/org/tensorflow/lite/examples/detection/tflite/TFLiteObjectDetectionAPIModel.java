@@ -20,16 +20,19 @@ import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.RectF;
 import android.os.Trace;
-import android.util.Log;
-import android.util.Pair;
-
-import com.google.gson.Gson;
 
 import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.YuvFaceSampler;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -42,6 +45,15 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Wrapper for frozen detection models trained using the Tensorflow Object Detection API:
@@ -67,6 +79,29 @@ public class TFLiteObjectDetectionAPIModel
   private static final float IMAGE_MEAN = 128.0f;
   private static final float IMAGE_STD = 128.0f;
 
+  // Gallery size above which the HNSW index is used
+  private static final int DEFAULT_APPROXIMATE_SEARCH_THRESHOLD = 10000;
+  // Gallery size from which the product quantizer is trained, 16 rows per entry of its
+  // 256-entry codebooks, and growth that triggers retraining
+  private static final int MIN_PRODUCT_QUANTIZATION_ROWS = 16 * 256;
+  private static final int PQ_RETRAIN_GROWTH = 2;
+  // Rows encoded by a retrained product quantizer per search or registration
+  private static final int PQ_ROWS_PER_STEP = 1024;
+  // Rows per IVF list from which the lists are trained, and growth that triggers retraining
+  private static final int MIN_IVF_ROWS_PER_LIST = 16;
+  private static final int IVF_RETRAIN_GROWTH = 2;
+  // Rows assigned to a rebuilt IVF index per search or registration, bounding the frame time
+  private static final int IVF_ROWS_PER_STEP = 1024;
+  // Gallery size from which the exact scan is split across threads
+  private static final int PARALLEL_SEARCH_ROWS = 8192;
+  private static final int DEFAULT_SEARCH_THREADS =
+      Math.min(4, Runtime.getRuntime().availableProcessors());
+  // Fraction of deleted rows above which the gallery is compacted in the background
+  private static final float DEFAULT_COMPACTION_THRESHOLD = 0.25f;
+
+  // Largest batch whose buffers and input shape are cached between calls
+  private static final int MAX_CACHED_BATCH = 16;
+
   // Number of threads in the java app
   private static final int NUM_THREADS = 4;
   private boolean isModelQuantized;
@@ -88,19 +123,856 @@ public class TFLiteObjectDetectionAPIModel
   // contains the number of detected boxes
   private float[] numDetections;
 
-  private float[][] embeedings;
+  // embeedings: array of shape [1, OUTPUT_SIZE], reused by every single-image call
+  private final float[][] embeedings = new float[1][OUTPUT_SIZE];
 
   private ByteBuffer imgData;
 
+  // Interpreter input array and output map, wired to imgData and embeedings once.
+  private final Object[] inputArray = new Object[1];
+  private final Map<Integer, Object> outputMap = new HashMap<>();
+  // Result holder behind the list returning recognizeImage.
+  private final RecognitionResult lastResult = new RecognitionResult();
+
+  // Batched inference: input shapes, input buffers and output arrays per batch size, so common
+  // face counts never reallocate. Index 0 is unused.
+  private final int[][] batchShapes = new int[MAX_CACHED_BATCH + 1][];
+  private final ByteBuffer[] batchInputs = new ByteBuffer[MAX_CACHED_BATCH + 1];
+  private final float[][][] batchOutputs = new float[MAX_CACHED_BATCH + 1][][];
+  // Batch size the input tensor is currently shaped for.
+  private int batchSize = 1;
+  // Reusable views of the faces passed to recognizeImages and recognizeFaces.
+  private final BitmapSource bitmapSource = new BitmapSource();
+  private final YuvSource yuvSource = new YuvSource();
+
   private Interpreter tfLite;
 
+  // Pooled mode: extra interpreters over the same model, each driven by its own thread.
+  private List<Worker> pool;
+  private ExecutorService poolExecutor;
+
   // Face Mask Detector Output
   private float[][] output;
-  private final Gson gson = new Gson();
 
-  private HashMap<String, Recognition> registered = new HashMap<>();
+  private final EmbeddingGallery registered = new EmbeddingGallery(OUTPUT_SIZE);
+  // Snapshot of registered that searches and indexes are pinned to. Registrations, possibly made
+  // on other threads, are picked up by the next search.
+  private EmbeddingGallery.Snapshot view = registered.snapshot();
+  private final float[] nearestDistance = new float[1];
+  // Top-k search state, sized for the largest k requested so far.
+  private final DistanceHeap topK = new DistanceHeap(8, true);
+  private int[] topKIdentities = new int[8];
+  // Multi-query search state, sized for the most faces searched at once so far.
+  private float[][] batchQueries = new float[0][];
+  private int[] batchRows = new int[0];
+  private String[] batchNames = new String[0];
+  private float[] batchDistances = new float[0];
+
+  // Approximate search: galleries with more rows than the threshold are searched through an
+  // HNSW graph instead of the exact scan.
+  private int approximateSearchThreshold = DEFAULT_APPROXIMATE_SEARCH_THRESHOLD;
+  private int hnswM = HnswIndex.DEFAULT_M;
+  private int hnswEfSearch = HnswIndex.DEFAULT_EF_SEARCH;
+  // Index of the backend in use, null while the gallery is scanned exactly. Only ever of the
+  // backend's kind: changing backends drops it.
+  private GalleryIndex searchIndex;
+
+  private Metric metric = Metric.EUCLIDEAN;
+  // Distance of the exact scans, picked for the metric and embedding size so that the scan loops
+  // see a single implementation.
+  private DistanceKernel kernel = DistanceKernel.create(metric, OUTPUT_SIZE);
+  // Unit length copy of the query in cosine mode.
+  private final float[] unitQuery = new float[OUTPUT_SIZE];
+  private SearchBackend backend = SearchBackend.AUTO;
+  // INT8: int8 scan with float re-ranking of this many candidates.
+  private int quantizedRerank = QuantizedIndex.DEFAULT_RERANK;
+  // PRODUCT_QUANTIZATION: bytes per code, and candidates re-ranked with float distances.
+  private int pqSubspaces = ProductQuantizationIndex.DEFAULT_SUBSPACES;
+  private int pqRerank = ProductQuantizationIndex.DEFAULT_RERANK;
+  // Index being filled with retrained codebooks or renumbered rows, swapped in once complete.
+  private ProductQuantizationIndex pqRebuild;
+  // Codebooks being trained in the background, and the live rows they were sampled from.
+  private Future<float[]> pqTraining;
+  private int pqTrainedSize;
+  // IVF: lists the rows are partitioned into, and lists scanned per query.
+  private int ivfLists = IvfIndex.DEFAULT_LISTS;
+  private int ivfNprobe = IvfIndex.DEFAULT_NPROBE;
+  // Index being filled with retrained centroids or renumbered rows, swapped in once complete.
+  private IvfIndex ivfRebuild;
+  // Centroids being retrained in the background, and the gallery size they were sampled at.
+  private Future<float[]> ivfTraining;
+  private int ivfTrainedSize;
+  // Single low-priority thread training the IVF centroids and the PQ codebooks.
+  private ExecutorService trainingExecutor;
+  // PROTOTYPE: nearest identities whose shots are scanned.
+  private int prototypeProbe = PrototypeIndex.DEFAULT_PROBE;
+  // LSH: signature bits, and candidates of the Hamming scan re-scored with float distances.
+  private int lshBits = SignHashIndex.DEFAULT_BITS;
+  private int lshCandidates = SignHashIndex.DEFAULT_CANDIDATES;
+  // Most embeddings kept per identity, 0 for no limit.
+  private int maxShots;
+  // Exact scan shards, one per search thread, created for large galleries only.
+  private int searchThreads = DEFAULT_SEARCH_THREADS;
+  private ShardedSearch shardedSearch;
+
+  // Deleted rows are reclaimed by a background compaction once they pass this fraction of the
+  // rows, and the compaction in flight, if any.
+  private float compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+  private Future<?> compaction;
+  private ExecutorService compactionExecutor;
+  // Indexes the heap compaction in flight rebuilds, searches stay on the previous generation
+  // until they are done.
+  private volatile CompactedIndexes compactedIndexes;
+  // searchIndex as of the last update on the search thread. Compactions start on the registering
+  // thread and copy the index from here, never from searchIndex.
+  private volatile GalleryIndex publishedIndex;
+
+  // File the gallery is persisted to, null to keep it in memory only.
+  private File galleryFile;
+  // Gallery searched straight from its mapped file, replaces registered when set.
+  private MappedEmbeddingGallery mappedGallery;
+
   public void register(String name, Recognition rec) {
-    registered.put(name, rec);
+    store(name, rec, false);
+  }
+
+  @Override
+  public boolean replace(String name, Recognition rec) {
+    return store(name, rec, true);
+  }
+
+  // Registers the embeddings of a recognition, or with replaceOnly replaces those of a registered
+  // name only. Previous embeddings are deleted rather than compacted away, so the rows keep their
+  // numbers and no index has to be rebuilt.
+  private boolean store(String name, Recognition rec, boolean replaceOnly) {
+    final Object extra = metric == Metric.COSINE ? normalized(rec.getExtra()) : rec.getExtra();
+    boolean stored = true;
+    final MappedEmbeddingGallery mapped = mappedGallery;
+    if (mapped != null) {
+      // The mapped gallery remaps its file on registration, searches wait for it.
+      synchronized (mapped) {
+        try {
+          if (replaceOnly) {
+            stored = mapped.replace(name, extra);
+          } else if (mapped.register(name, extra)) {
+            LOGGER.w("Registering %s again replaced its previous embeddings", name);
+          }
+        } catch (final IOException e) {
+          LOGGER.e(e, "Could not register %s in %s", name, galleryFile);
+          stored = false;
+        }
+        updateIndex();
+        compactIfNeeded(mapped);
+      }
+      return stored;
+    }
+    // Writers, and the file, are serialized on the gallery. Searches keep running on their
+    // snapshot and pick the new rows up on their next call.
+    synchronized (registered) {
+      final int firstRow = registered.size();
+      if (replaceOnly) {
+        stored = registered.replace(name, extra);
+      } else if (registered.register(name, extra)) {
+        LOGGER.w("Registering %s again replaced its previous embeddings", name);
+      }
+      if (stored) {
+        saveGallery(firstRow);
+      }
+      compactIfNeeded(registered);
+    }
+    return stored;
+  }
+
+  @Override
+  public boolean unregister(String name) {
+    boolean removed = false;
+    final MappedEmbeddingGallery mapped = mappedGallery;
+    if (mapped != null) {
+      synchronized (mapped) {
+        try {
+          removed = mapped.remove(name);
+        } catch (final IOException e) {
+          LOGGER.e(e, "Could not unregister %s in %s", name, galleryFile);
+        }
+        updateIndex();
+        compactIfNeeded(mapped);
+      }
+      return removed;
+    }
+    synchronized (registered) {
+      removed = registered.remove(name);
+      if (removed) {
+        // No row was added: only the identity table and header of the file are rewritten.
+        saveGallery(registered.size());
+      }
+      compactIfNeeded(registered);
+    }
+    return removed;
+  }
+
+  /**
+   * Sets the fraction of deleted embeddings above which the gallery is compacted on a background
+   * thread, which also rebuilds the search index over the compacted rows; searches keep using the
+   * previous rows until then. 0 compacts after every deletion.
+   */
+  public void setCompactionThreshold(float fraction) {
+    compactionThreshold = Math.max(0, fraction);
+  }
+
+  // Starts a background compaction once the deleted rows pass the threshold, unless one is still
+  // running. Called with the gallery locked.
+  private synchronized void compactIfNeeded(EmbeddingRows rows) {
+    final int deleted = rows.getDeletedCount();
+    if (deleted == 0
+            || deleted <= compactionThreshold * rows.size()
+            || (compaction != null && !compaction.isDone())) {
+      return;
+    }
+    if (compactionExecutor == null) {
+      compactionExecutor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "gallery-compaction");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      });
+    }
+    LOGGER.i("Compacting %d deleted of %d embeddings", deleted, rows.size());
+    final CompactedIndexes indexes = new CompactedIndexes(publishedIndex);
+    if (mappedGallery == null) {
+      compactedIndexes = indexes;
+    }
+    compaction = compactionExecutor.submit(() -> compactGallery(indexes));
+  }
+
+  // Drops the deleted rows and rebuilds the indexes in use over the rest, on the compaction
+  // thread. The heap gallery publishes the compacted rows as a new generation, which searches
+  // move to together with the rebuilt indexes, see pinView; the mapped one is only locked to
+  // swap in the compacted file and the indexes.
+  private void compactGallery(final CompactedIndexes indexes) {
+    final MappedEmbeddingGallery mapped = mappedGallery;
+    try {
+      if (mapped != null) {
+        compactMapped(mapped, indexes);
+        return;
+      }
+      final EmbeddingGallery.Snapshot compacted;
+      synchronized (registered) {
+        if (!registered.compact()) {
+          return;
+        }
+        compacted = registered.snapshot();
+        saveGallery(0);
+      }
+      indexes.rebuild(compacted);
+      indexes.generation = compacted.getGeneration();
+    } catch (final IOException e) {
+      LOGGER.e(e, "Could not compact %s", galleryFile);
+    } finally {
+      indexes.done = true;
+    }
+  }
+
+  // Writes the compacted file next to the mapped one and builds the indexes over it, then swaps
+  // both in. If the gallery changed meanwhile, it is compacted again with the lock held.
+  private void compactMapped(final MappedEmbeddingGallery mapped, final CompactedIndexes indexes)
+          throws IOException {
+    final MappedEmbeddingGallery.Compaction compaction;
+    synchronized (mapped) {
+      compaction = mapped.startCompaction();
+    }
+    if (compaction == null) {
+      return;
+    }
+    try (MappedEmbeddingGallery compacted = compaction.write()) {
+      indexes.rebuild(compacted);
+      synchronized (mapped) {
+        if (mappedGallery != mapped) {
+          return;
+        }
+        if (mapped.finishCompaction(compaction)) {
+          rowsCompacted(indexes);
+          setIndexRows(mapped);
+        } else if (mapped.compact()) {
+          rowsReplaced();
+        }
+        updateIndex();
+      }
+    } finally {
+      compaction.discard();
+    }
+  }
+
+  @Override
+  public void setGalleryFile(File file) throws IOException {
+    setGalleryFile(file, false);
+  }
+
+  @Override
+  public void setGalleryFile(File file, boolean memoryMapped) throws IOException {
+    galleryFile = null;
+    if (mappedGallery != null) {
+      mappedGallery.close();
+      mappedGallery = null;
+    }
+    if (memoryMapped) {
+      // The mapped file is the gallery: nothing is loaded, and no HNSW graph is built over it.
+      mappedGallery = new MappedEmbeddingGallery(file, OUTPUT_SIZE);
+      LOGGER.i("Mapped %d embeddings from %s", mappedGallery.size(), file);
+      if (metric == Metric.COSINE) {
+        mappedGallery.normalizeRows();
+      }
+      mappedGallery.setMaxShots(maxShots);
+      resetIndexes();
+      updateIndex();
+      galleryFile = file;
+      synchronized (mappedGallery) {
+        compactIfNeeded(mappedGallery);
+      }
+      return;
+    }
+    if (file.exists()) {
+      synchronized (registered) {
+        // The file replaces the faces registered so far rather than being appended to them.
+        registered.clear();
+        GalleryFile.read(file, registered);
+        LOGGER.i("Loaded %d embeddings from %s", registered.size(), file);
+        if (metric == Metric.COSINE && registered.normalizeRows()) {
+          GalleryFile.write(file, registered);
+        }
+      }
+      resetIndexes();
+      updateIndex();
+    }
+    galleryFile = file;
+  }
+
+  // Drops every index, the next update builds the one the backend needs from scratch.
+  private void resetIndexes() {
+    searchIndex = null;
+    resetPq();
+    resetIvf();
+  }
+
+  // Rows were renumbered by a compaction: the index it rebuilt replaces the one it was copied
+  // from, if still in use, and any other index is rebuilt as by rowsReplaced.
+  private void rowsCompacted(final CompactedIndexes compacted) {
+    final GalleryIndex rebuilt = searchIndex == compacted.inUse ? compacted.rebuilt : null;
+    final boolean pqRebuilding = pqRebuild != null;
+    final boolean ivfRebuilding = ivfRebuild != null;
+    rowsReplaced();
+    if (rebuilt != null) {
+      searchIndex = rebuilt;
+      if (!pqRebuilding) {
+        pqRebuild = null;
+      }
+      if (!ivfRebuilding) {
+        ivfRebuild = null;
+      }
+    }
+  }
+
+  // Rows were renumbered: the index is rebuilt from scratch, except that the PQ codebooks and
+  // IVF centroids are kept to encode the new rows a step at a time.
+  private void rowsReplaced() {
+    final ProductQuantizationIndex pq = pqRebuild != null
+            ? pqRebuild
+            : searchIndex instanceof ProductQuantizationIndex
+                    ? (ProductQuantizationIndex) searchIndex
+                    : null;
+    final IvfIndex ivf = ivfRebuild != null
+            ? ivfRebuild
+            : searchIndex instanceof IvfIndex ? (IvfIndex) searchIndex : null;
+    searchIndex = null;
+    pqRebuild = pq != null ? pq.emptyCopy(rows()) : null;
+    ivfRebuild = ivf != null ? ivf.emptyCopy(rows()) : null;
+  }
+
+  /**
+   * Moves the search state to the latest gallery snapshot: indexes are handed the new rows, and
+   * rebuilt where a compaction renumbered them. Deletions keep the row numbers, the indexes skip
+   * the deleted rows of the snapshot they are handed. A background compaction rebuilds the
+   * indexes itself, and the view only moves to the compacted rows once they are done.
+   */
+  private void pinView() {
+    final EmbeddingGallery.Snapshot latest = registered.snapshot();
+    if (latest == view) {
+      return;
+    }
+    final boolean renumbered = latest.getGeneration() != view.getGeneration();
+    final CompactedIndexes compacted = renumbered ? compactedIndexes : null;
+    if (compacted != null && !compacted.done && mappedGallery == null) {
+      return;
+    }
+    view = latest;
+    if (mappedGallery != null) {
+      // The indexes are over the mapped gallery.
+      return;
+    }
+    if (renumbered) {
+      compactedIndexes = null;
+      if (compacted != null && compacted.generation == latest.getGeneration()) {
+        rowsCompacted(compacted);
+      } else {
+        rowsReplaced();
+      }
+    }
+    setIndexRows(latest);
+  }
+
+  // Hands newer rows to every index; the graph is only built over heap snapshots.
+  private void setIndexRows(final EmbeddingRows rows) {
+    if (searchIndex != null) {
+      searchIndex.setRows(rows);
+    }
+    if (pqRebuild != null) {
+      pqRebuild.setRows(rows);
+    }
+    if (ivfRebuild != null) {
+      ivfRebuild.setRows(rows);
+    }
+  }
+
+  // Rows searched: the mapped gallery, or the pinned snapshot of the heap one.
+  private EmbeddingRows rows() {
+    return mappedGallery != null ? mappedGallery : view;
+  }
+
+  /** Saves the rows from {@code firstRow} on to the gallery file, 0 rewrites the whole file. */
+  private void saveGallery(int firstRow) {
+    if (galleryFile == null) {
+      return;
+    }
+    try {
+      if (firstRow == 0) {
+        GalleryFile.write(galleryFile, registered);
+      } else {
+        GalleryFile.append(galleryFile, registered, firstRow);
+      }
+    } catch (final IOException e) {
+      LOGGER.e(e, "Could not save gallery to %s", galleryFile);
+    }
+  }
+
+  /**
+   * Sets the gallery size (in embeddings) above which the HNSW index replaces the exact scan.
+   * Use {@link Integer#MAX_VALUE} to always search exactly.
+   */
+  public void setApproximateSearchThreshold(int threshold) {
+    approximateSearchThreshold = threshold;
+    updateIndex();
+  }
+
+  /**
+   * Tunes the HNSW index. Changing {@code m} rebuilds the graph, {@code efSearch} applies to the
+   * next query.
+   */
+  public void setHnswParameters(int m, int efSearch) {
+    if (m != hnswM) {
+      hnswM = m;
+      if (searchIndex instanceof HnswIndex) {
+        searchIndex = null;
+      }
+    }
+    hnswEfSearch = efSearch;
+    if (searchIndex instanceof HnswIndex) {
+      ((HnswIndex) searchIndex).setEfSearch(efSearch);
+    }
+    updateIndex();
+  }
+
+  /**
+   * Writes the HNSW graph or the product quantizer, whichever is in use, so that it does not have
+   * to be rebuilt or retrained.
+   */
+  public void saveIndex(File file) throws IOException {
+    if (!(searchIndex instanceof HnswIndex || searchIndex instanceof ProductQuantizationIndex)) {
+      return;
+    }
+    try (DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      if (searchIndex instanceof ProductQuantizationIndex) {
+        ((ProductQuantizationIndex) searchIndex).write(out);
+      } else {
+        ((HnswIndex) searchIndex).write(out);
+      }
+    }
+  }
+
+  /**
+   * Restores an index written by {@link #saveIndex} for the current gallery, switching to its
+   * backend. Embeddings registered after the index was saved are added incrementally.
+   */
+  public void loadIndex(File file) throws IOException {
+    pinView();
+    try (DataInputStream in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      in.mark(4);
+      final int magic = in.readInt();
+      in.reset();
+      if (magic == ProductQuantizationIndex.MAGIC) {
+        final EmbeddingRows rows = rows();
+        final ProductQuantizationIndex pq = ProductQuantizationIndex.read(in, rows, pqRerank);
+        resetIndexes();
+        pqTrainedSize = rows.size() - rows.getDeletedCount();
+        pqSubspaces = pq.getCodeSize();
+        backend = SearchBackend.PRODUCT_QUANTIZATION;
+        searchIndex = pq;
+      } else {
+        final HnswIndex hnsw = HnswIndex.read(in, view);
+        resetIndexes();
+        hnswM = hnsw.getM();
+        hnsw.setEfSearch(hnswEfSearch);
+        backend = SearchBackend.AUTO;
+        searchIndex = hnsw;
+      }
+    }
+    searchIndex.addRows();
+    publishedIndex = searchIndex;
+  }
+
+  @Override
+  public void setSearchBackend(SearchBackend backend) {
+    selectBackend(backend);
+    updateIndex();
+  }
+
+  // Switches backends, dropping the index of the previous one.
+  private void selectBackend(SearchBackend backend) {
+    if (backend != this.backend) {
+      this.backend = backend;
+      resetIndexes();
+    }
+  }
+
+  /**
+   * Selects the {@link SearchBackend#INT8} backend, re-ranking the best {@code rerank}
+   * candidates of the integer scan with float distances, or goes back to {@link
+   * SearchBackend#AUTO}. It saves memory with a mapped gallery only, see {@link QuantizedIndex}.
+   */
+  public void setQuantizedSearch(boolean enabled, int rerank) {
+    final int value = Math.max(1, rerank);
+    if (value != quantizedRerank) {
+      quantizedRerank = value;
+      if (searchIndex instanceof QuantizedIndex) {
+        searchIndex = null;
+      }
+    }
+    if (enabled) {
+      selectBackend(SearchBackend.INT8);
+    } else if (backend == SearchBackend.INT8) {
+      selectBackend(SearchBackend.AUTO);
+    }
+    updateIndex();
+  }
+
+  /**
+   * Tunes the {@link SearchBackend#PRODUCT_QUANTIZATION} backend. Changing {@code subspaces}, the
+   * bytes per code, retrains the codebooks.
+   *
+   * @param subspaces sub-vectors per embedding, must divide its dimension.
+   * @param rerank candidates re-ranked with float distances, 0 to rank by code distances only.
+   */
+  public void setProductQuantization(int subspaces, int rerank) {
+    if (subspaces <= 0 || OUTPUT_SIZE % subspaces != 0) {
+      throw new IllegalArgumentException(
+              subspaces + " sub-vectors do not divide dimension " + OUTPUT_SIZE);
+    }
+    if (subspaces != pqSubspaces || Math.max(0, rerank) != pqRerank) {
+      pqSubspaces = subspaces;
+      pqRerank = Math.max(0, rerank);
+      resetPq();
+    }
+    updateIndex();
+  }
+
+  /**
+   * In {@link Metric#COSINE} mode the rows already stored are normalized once, in their file too,
+   * and stay so when switching back.
+   */
+  @Override
+  public void setMetric(Metric metric) {
+    this.metric = metric;
+    kernel = DistanceKernel.create(metric, OUTPUT_SIZE);
+    if (metric == Metric.COSINE) {
+      boolean changed = false;
+      if (mappedGallery != null) {
+        synchronized (mappedGallery) {
+          try {
+            changed = mappedGallery.normalizeRows();
+          } catch (final IOException e) {
+            LOGGER.e(e, "Could not normalize %s", galleryFile);
+          }
+        }
+      } else {
+        synchronized (registered) {
+          changed = registered.normalizeRows();
+          if (changed) {
+            saveGallery(0);
+          }
+        }
+      }
+      if (changed) {
+        // Every vector moved, none of the indexes can be kept.
+        resetIndexes();
+      }
+    }
+    updateIndex();
+  }
+
+  /**
+   * Tunes the {@link SearchBackend#PROTOTYPE} backend: how many of the identities nearest to the
+   * query, by the mean of their shots, have their shots compared. Applies to the next query.
+   */
+  public void setPrototypeProbe(int probe) {
+    prototypeProbe = probe;
+    if (searchIndex instanceof PrototypeIndex) {
+      ((PrototypeIndex) searchIndex).setProbe(probe);
+    }
+    updateIndex();
+  }
+
+  /**
+   * Tunes the {@link SearchBackend#LSH} backend. Changing either value rehashes the gallery.
+   *
+   * @param bits signature length, 128 or 256 are typical; rounded up to a multiple of 64.
+   * @param candidates rows of the Hamming scan re-scored with float distances.
+   */
+  public void setLshParameters(int bits, int candidates) {
+    if (bits != lshBits || candidates != lshCandidates) {
+      lshBits = bits;
+      lshCandidates = candidates;
+      if (searchIndex instanceof SignHashIndex) {
+        searchIndex = null;
+      }
+    }
+    updateIndex();
+  }
+
+  /** The cap is kept in the gallery file too, since surplus shots are removed from it. */
+  @Override
+  public void setMaxShotsPerIdentity(int shots) {
+    maxShots = Math.max(0, shots);
+    final MappedEmbeddingGallery mapped = mappedGallery;
+    if (mapped != null) {
+      synchronized (mapped) {
+        try {
+          if (mapped.setMaxShots(maxShots)) {
+            rowsReplaced();
+          }
+        } catch (final IOException e) {
+          LOGGER.e(e, "Could not trim %s", galleryFile);
+        }
+        updateIndex();
+      }
+      return;
+    }
+    synchronized (registered) {
+      if (registered.setMaxShots(maxShots)) {
+        saveGallery(0);
+      }
+    }
+  }
+
+  /**
+   * Sets how many threads, the calling one included, share the exact scan of galleries with more
+   * than a few thousand embeddings. 1 keeps it on the calling thread.
+   */
+  public void setSearchThreads(int threads) {
+    if (threads != searchThreads && shardedSearch != null) {
+      shardedSearch.close();
+      shardedSearch = null;
+    }
+    searchThreads = threads;
+  }
+
+  /**
+   * Tunes the {@link SearchBackend#IVF} backend. Changing {@code lists} retrains the centroids,
+   * {@code nprobe} applies to the next query.
+   */
+  public void setIvfParameters(int lists, int nprobe) {
+    if (lists != ivfLists) {
+      ivfLists = Math.max(1, lists);
+      resetIvf();
+    }
+    ivfNprobe = nprobe;
+    if (searchIndex instanceof IvfIndex) {
+      ((IvfIndex) searchIndex).setNprobe(nprobe);
+    }
+    if (ivfRebuild != null) {
+      ivfRebuild.setNprobe(nprobe);
+    }
+    updateIndex();
+  }
+
+  // Brings the index of the backend up to date with the gallery, and publishes it for the next
+  // compaction.
+  private void updateIndex() {
+    updateSearchIndex();
+    publishedIndex = searchIndex;
+  }
+
+  private void updateSearchIndex() {
+    pinView();
+    final EmbeddingRows rows = rows();
+    if (metric == Metric.INNER_PRODUCT) {
+      // The indexes rank by L2 distance, which only agrees with the dot product on unit vectors.
+      resetIndexes();
+      return;
+    }
+    if (backend == SearchBackend.PRODUCT_QUANTIZATION || backend == SearchBackend.IVF) {
+      // Trained in the background, and swapped in by updatePq and updateIvf once complete.
+      if (searchIndex != null) {
+        searchIndex.addRows();
+      }
+      if (backend == SearchBackend.IVF) {
+        updateIvf();
+      } else {
+        updatePq();
+      }
+      return;
+    }
+    if (backend == SearchBackend.AUTO && view.size() <= approximateSearchThreshold) {
+      searchIndex = null;
+      return;
+    }
+    if (searchIndex == null) {
+      searchIndex = createIndex(rows);
+    }
+    searchIndex.addRows();
+  }
+
+  // An empty index of the backend in use, other than the trained ones.
+  private GalleryIndex createIndex(final EmbeddingRows rows) {
+    switch (backend) {
+      case FLOAT16:
+        return new HalfPrecisionIndex(rows);
+      case LSH:
+        return new SignHashIndex(rows, lshBits, lshCandidates);
+      case INT8:
+        return new QuantizedIndex(rows, quantizedRerank);
+      case PROTOTYPE:
+        return new PrototypeIndex(rows, prototypeProbe);
+      default:
+        LOGGER.i("Building HNSW index over %d embeddings", view.size());
+        final HnswIndex hnsw = new HnswIndex(view, hnswM, HnswIndex.DEFAULT_EF_CONSTRUCTION);
+        hnsw.setEfSearch(hnswEfSearch);
+        return hnsw;
+    }
+  }
+
+  /**
+   * Advances the product quantizer the way {@link #updateIvf} advances the IVF index: codebooks
+   * are trained in the background once there are enough rows for 256 centroids per subspace, a
+   * retrained or renumbered index is encoded a step at a time, and the gallery scans exactly
+   * until the first index is complete.
+   */
+  private void updatePq() {
+    if (metric == Metric.INNER_PRODUCT) {
+      return;
+    }
+    final EmbeddingRows rows = rows();
+    if (pqTraining != null) {
+      if (!pqTraining.isDone()) {
+        return;
+      }
+      try {
+        pqRebuild =
+                new ProductQuantizationIndex(rows, pqSubspaces, pqRerank, pqTraining.get());
+      } catch (final ExecutionException | InterruptedException e) {
+        LOGGER.e(e, "Could not train the product quantizer");
+      }
+      pqTraining = null;
+    }
+    if (pqRebuild != null) {
+      if (!pqRebuild.addRows(PQ_ROWS_PER_STEP)) {
+        return;
+      }
+      LOGGER.i("Product quantizer over %d embeddings", rows.size());
+      searchIndex = pqRebuild;
+      publishedIndex = searchIndex;
+      pqRebuild = null;
+    }
+    final int size = rows.size() - rows.getDeletedCount();
+    if (size >= MIN_PRODUCT_QUANTIZATION_ROWS && size >= PQ_RETRAIN_GROWTH * pqTrainedSize) {
+      LOGGER.i("Training product quantizer over %d embeddings", size);
+      pqTrainedSize = size;
+      pqTraining = trainingExecutor().submit(ProductQuantizationIndex.trainer(rows, pqSubspaces));
+    }
+  }
+
+  // Drops the product quantizer and any training in flight, the next update starts over.
+  private void resetPq() {
+    if (pqTraining != null) {
+      pqTraining.cancel(false);
+      pqTraining = null;
+    }
+    if (searchIndex instanceof ProductQuantizationIndex) {
+      searchIndex = null;
+    }
+    pqRebuild = null;
+    pqTrainedSize = 0;
+  }
+
+  private ExecutorService trainingExecutor() {
+    if (trainingExecutor == null) {
+      trainingExecutor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "index-training");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      });
+    }
+    return trainingExecutor;
+  }
+
+  /**
+   * Advances the IVF maintenance: swaps in centroids trained in the background, assigns the rows
+   * of a rebuilt index a step at a time, and starts retraining once the gallery has grown enough
+   * since the last training. Until the first index is complete, searches scan exactly.
+   */
+  private void updateIvf() {
+    if (metric == Metric.INNER_PRODUCT) {
+      return;
+    }
+    final EmbeddingRows rows = rows();
+    if (ivfTraining != null) {
+      if (!ivfTraining.isDone()) {
+        return;
+      }
+      try {
+        ivfRebuild = new IvfIndex(rows, ivfTraining.get(), ivfNprobe);
+      } catch (final ExecutionException | InterruptedException e) {
+        LOGGER.e(e, "Could not train the IVF centroids");
+      }
+      ivfTraining = null;
+    }
+    if (ivfRebuild != null) {
+      if (!ivfRebuild.addRows(IVF_ROWS_PER_STEP)) {
+        return;
+      }
+      LOGGER.i("IVF index with %d lists over %d embeddings", ivfRebuild.getLists(), rows.size());
+      searchIndex = ivfRebuild;
+      publishedIndex = searchIndex;
+      ivfRebuild = null;
+    }
+    // Deleted rows are left out of training, so only the live rows count towards it.
+    final int size = rows.size() - rows.getDeletedCount();
+    if (size >= ivfLists * MIN_IVF_ROWS_PER_LIST && size >= IVF_RETRAIN_GROWTH * ivfTrainedSize) {
+      LOGGER.i("Training %d IVF centroids over %d embeddings", ivfLists, size);
+      ivfTrainedSize = size;
+      ivfTraining = trainingExecutor().submit(IvfIndex.trainer(rows, ivfLists));
+    }
+  }
+
+  // Drops the IVF index and any training in flight, the next update starts over.
+  private void resetIvf() {
+    if (ivfTraining != null) {
+      ivfTraining.cancel(false);
+      ivfTraining = null;
+    }
+    if (searchIndex instanceof IvfIndex) {
+      searchIndex = null;
+    }
+    ivfRebuild = null;
+    ivfTrainedSize = 0;
   }
 
   private TFLiteObjectDetectionAPIModel() {}
@@ -132,6 +1004,24 @@ public class TFLiteObjectDetectionAPIModel
           final int inputSize,
           final boolean isQuantized)
           throws IOException {
+    return create(assetManager, modelFilename, labelFilename, inputSize, isQuantized, 0);
+  }
+
+  /**
+   * Initializes a classifier that, in addition to the main interpreter, keeps a pool of
+   * interpreters over the same memory-mapped model and embeds the faces of one
+   * {@link #recognizeImages} or {@link #recognizeFaces} call concurrently, one worker thread per interpreter.
+   *
+   * @param poolSize Number of pooled interpreters, 0 or 1 disables the pool.
+   */
+  public static SimilarityClassifier create(
+          final AssetManager assetManager,
+          final String modelFilename,
+          final String labelFilename,
+          final int inputSize,
+          final boolean isQuantized,
+          final int poolSize)
+          throws IOException {
 
     final TFLiteObjectDetectionAPIModel d = new TFLiteObjectDetectionAPIModel();
 
@@ -147,8 +1037,9 @@ public class TFLiteObjectDetectionAPIModel
 
     d.inputSize = inputSize;
 
+    final MappedByteBuffer model = loadModelFile(assetManager, modelFilename);
     try {
-      d.tfLite = new Interpreter(loadModelFile(assetManager, modelFilename));
+      d.tfLite = new Interpreter(model);
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
@@ -164,8 +1055,13 @@ public class TFLiteObjectDetectionAPIModel
     d.imgData = ByteBuffer.allocateDirect(1 * d.inputSize * d.inputSize * 3 * numBytesPerChannel);
     d.imgData.order(ByteOrder.nativeOrder());
     d.intValues = new int[d.inputSize * d.inputSize];
+    d.inputArray[0] = d.imgData;
+    d.outputMap.put(0, d.embeedings);
 
     d.tfLite.setNumThreads(NUM_THREADS);
+    if (poolSize > 1) {
+      d.createPool(model, poolSize);
+    }
     d.outputLocations = new float[1][NUM_DETECTIONS][4];
     d.outputClasses = new float[1][NUM_DETECTIONS];
     d.outputScores = new float[1][NUM_DETECTIONS];
@@ -173,130 +1069,528 @@ public class TFLiteObjectDetectionAPIModel
     return d;
   }
 
-  // looks for the nearest embeeding in the dataset (using L2 norm)
-  // and retrurns the pair <id, distance>
-  private Pair<String, Float> findNearest(float[] emb) {
+  // looks for the nearest embeeding in the dataset (using the metric's kernel)
+  // and returns its row, leaving the distance in nearestDistance
+  private int findNearest(float[] emb) {
+    emb = searchQuery(emb);
+    if (backend == SearchBackend.IVF) {
+      updateIvf();
+    } else if (backend == SearchBackend.PRODUCT_QUANTIZATION) {
+      updatePq();
+    }
+    if (searchIndex != null) {
+      return searchIndex.findNearest(emb, nearestDistance);
+    }
+    if (mappedGallery != null) {
+      return mappedGallery.findNearest(kernel, emb, nearestDistance);
+    }
+    final ShardedSearch sharded = shardedSearch();
+    if (sharded != null) {
+      return sharded.findNearest(view, kernel, emb, nearestDistance);
+    }
+    return view.findNearest(kernel, emb, nearestDistance);
+  }
+
+  // The shards of the exact heap gallery scan, or null while the gallery is small enough to
+  // scan on the calling thread.
+  private ShardedSearch shardedSearch() {
+    if (searchThreads <= 1 || view.size() < PARALLEL_SEARCH_ROWS) {
+      return null;
+    }
+    if (shardedSearch == null) {
+      shardedSearch = new ShardedSearch(searchThreads);
+    }
+    return shardedSearch;
+  }
+
+  // The embedding as searched: a unit length copy of it in cosine mode.
+  private float[] searchQuery(float[] emb) {
+    if (metric != Metric.COSINE) {
+      return emb;
+    }
+    System.arraycopy(emb, 0, unitQuery, 0, OUTPUT_SIZE);
+    EmbeddingGallery.normalize(unitQuery, 0, OUTPUT_SIZE);
+    return unitQuery;
+  }
 
-    Pair<String, Float> ret = null;
-    for (Map.Entry<String, Recognition> entry : registered.entrySet()) {
-      final String name = entry.getKey();
+  // Unit length copies of the embeddings carried by a recognition extra.
+  private static float[][] normalized(Object extra) {
+    final float[][] values = EmbeddingGallery.toEmbeddings(extra);
+    final float[][] unit = new float[values.length][];
+    for (int i = 0; i < values.length; ++i) {
+      unit[i] = values[i].clone();
+      EmbeddingGallery.normalize(unit[i], 0, unit[i].length);
+    }
+    return unit;
+  }
 
-      float distance = 0;
-      ArrayList arrList = (ArrayList) entry.getValue().getExtra();
-      for (Object mappedFloat : arrList) {
+  // Fills the result with the nearest registered identity of one embedding.
+  private void match(float[] embedding, RecognitionResult result) {
+    final MappedEmbeddingGallery mapped = mappedGallery;
+    if (mapped == null) {
+      syncGallery();
+      final int row = findNearest(embedding);
+      result.set(row < 0 ? "?" : view.getIdentity(row), nearestDistance[0], embedding);
+      return;
+    }
+    synchronized (mapped) {
+      final int row = findNearest(embedding);
+      result.set(row < 0 ? "?" : mapped.getIdentity(row), nearestDistance[0], embedding);
+    }
+  }
 
-        Log.e("mappedFace",gson.toJson(mappedFloat));
-        ArrayList element = (ArrayList) mappedFloat;
-        for (int i = 0; i < element.size(); i++) {
-          float diff = emb[i] - Float.parseFloat(String.valueOf(element.get(i)));
-          distance += diff*diff;
+  @Override
+  public void findNearest(float[][] embeddings, String[] names, float[] distances) {
+    final int n = Math.min(embeddings.length, Math.min(names.length, distances.length));
+    final MappedEmbeddingGallery mapped = mappedGallery;
+    if (mapped != null) {
+      synchronized (mapped) {
+        for (int i = 0; i < n; ++i) {
+          final int row = findNearest(embeddings[i]);
+          names[i] = row < 0 ? null : mapped.getIdentity(row);
+          distances[i] = nearestDistance[0];
         }
+      }
+      return;
+    }
+    syncGallery();
+    if (backend == SearchBackend.IVF) {
+      updateIvf();
+    } else if (backend == SearchBackend.PRODUCT_QUANTIZATION) {
+      updatePq();
+    }
+    if (n == 1 || !scansExactly()) {
+      for (int i = 0; i < n; ++i) {
+        final int row = findNearest(embeddings[i]);
+        names[i] = row < 0 ? null : view.getIdentity(row);
+        distances[i] = nearestDistance[0];
+      }
+      return;
+    }
 
-        distance = (float) Math.sqrt(distance);
-        if (ret == null || distance < ret.second) {
-          ret = new Pair<>(name, distance);
+    if (batchRows.length < n) {
+      batchRows = new int[n];
+      batchQueries = new float[n][];
+    }
+    float[][] queries = embeddings;
+    if (metric == Metric.COSINE) {
+      for (int i = 0; i < n; ++i) {
+        if (batchQueries[i] == null) {
+          batchQueries[i] = new float[OUTPUT_SIZE];
         }
+        System.arraycopy(embeddings[i], 0, batchQueries[i], 0, OUTPUT_SIZE);
+        EmbeddingGallery.normalize(batchQueries[i], 0, OUTPUT_SIZE);
       }
+      queries = batchQueries;
+    }
+    view.findNearest(kernel, queries, n, batchRows, distances);
+    for (int i = 0; i < n; ++i) {
+      names[i] = batchRows[i] < 0 ? null : view.getIdentity(batchRows[i]);
     }
-    return ret;
   }
 
+  // Whether searches scan the heap gallery exactly, on the calling thread.
+  private boolean scansExactly() {
+    return searchIndex == null && shardedSearch() == null;
+  }
 
-  @Override
-  public List<Recognition> recognizeImage(final Bitmap bitmap, boolean storeExtra) {
-    // Log this method so that it can be analyzed with systrace.
-    Trace.beginSection("recognizeImage");
+  // Catches the indexes up with registrations made since the last search.
+  private void syncGallery() {
+    if (registered.snapshot() != view) {
+      updateIndex();
+    }
+  }
 
-    Trace.beginSection("preprocessBitmap");
-    // Preprocess the image data from 0-255 int to normalized float based
-    // on the provided parameters.
+  // Adapts a result holder to the list based API.
+  private static Recognition toRecognition(RecognitionResult result, boolean storeExtra) {
+    final Recognition rec = new Recognition(
+            "0",
+            result.getTitle(),
+            result.getDistance(),
+            new RectF());
+    if (storeExtra) {
+      // The holder is reused, the stored embedding needs its own copy.
+      rec.setExtra(new float[][] {result.getEmbedding().clone()});
+    }
+    return rec;
+  }
+
+  // Preprocess the image data from 0-255 int to normalized float based
+  // on the provided parameters, appending it at the buffer position.
+  private void fillInput(final ByteBuffer buffer, final Bitmap bitmap, final int[] intValues) {
     bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
 
-    imgData.rewind();
     for (int i = 0; i < inputSize; ++i) {
       for (int j = 0; j < inputSize; ++j) {
         int pixelValue = intValues[i * inputSize + j];
         if (isModelQuantized) {
           // Quantized model
-          imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-          imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-          imgData.put((byte) (pixelValue & 0xFF));
+          buffer.put((byte) ((pixelValue >> 16) & 0xFF));
+          buffer.put((byte) ((pixelValue >> 8) & 0xFF));
+          buffer.put((byte) (pixelValue & 0xFF));
         } else { // Float model
-          imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+          buffer.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+          buffer.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+          buffer.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
         }
       }
     }
+  }
+
+  // Runs the model on a face crop, leaving the result in embeedings.
+  private void runEmbedding(final Bitmap bitmap) {
+    Trace.beginSection("preprocessBitmap");
+    imgData.rewind();
+    fillInput(imgData, bitmap, intValues);
     Trace.endSection(); // preprocessBitmap
 
-    // Copy the input data into TensorFlow.
-    Trace.beginSection("feed");
+    // Run the inference call.
+    Trace.beginSection("run");
+    resizeBatch(1);
+    //tfLite.runForMultipleInputsOutputs(inputArray, outputMapBack);
+    tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+    Trace.endSection();
+  }
 
+  @Override
+  public List<Recognition> recognizeImage(final Bitmap bitmap, boolean storeExtra) {
+    recognizeImage(bitmap, lastResult);
 
-    Object[] inputArray = {imgData};
+    if (lastResult.getDistance() < Float.MAX_VALUE) {
+      LOGGER.i("nearest: " + lastResult.getTitle() + " - distance: " + lastResult.getDistance());
+    }
+
+    final int numDetectionsOutput = 1;
+    final ArrayList<Recognition> recognitions = new ArrayList<>(numDetectionsOutput);
+    recognitions.add(toRecognition(lastResult, storeExtra));
+    return recognitions;
+  }
+
+  @Override
+  public void recognizeImage(final Bitmap bitmap, final RecognitionResult result) {
+    // Log this method so that it can be analyzed with systrace.
+    Trace.beginSection("recognizeImage");
+
+    runEmbedding(bitmap);
+    match(embeedings[0], result);
 
     Trace.endSection();
+  }
 
-// Here outputMap is changed to fit the Face Mask detector
-    Map<Integer, Object> outputMap = new HashMap<>();
+  @Override
+  public List<Recognition> recognizeImages(final List<Bitmap> bitmaps, boolean storeExtra) {
+    Trace.beginSection("recognizeImages");
+    bitmapSource.bitmaps = bitmaps;
+    try {
+      return recognizeFaces(bitmapSource, storeExtra);
+    } finally {
+      bitmapSource.bitmaps = null;
+      Trace.endSection();
+    }
+  }
 
-    embeedings = new float[1][OUTPUT_SIZE];
-    outputMap.put(0, embeedings);
+  @Override
+  public List<Recognition> recognizeFaces(
+          final YuvFaceSampler frame, final List<RectF> boxes, boolean storeExtra) {
+    Trace.beginSection("recognizeFaces");
+    yuvSource.frame = frame;
+    yuvSource.boxes = boxes;
+    try {
+      return recognizeFaces(yuvSource, storeExtra);
+    } finally {
+      yuvSource.frame = null;
+      yuvSource.boxes = null;
+      Trace.endSection();
+    }
+  }
 
+  // Embeds every face of the source, in one batch or on the pool, then matches them in order.
+  private List<Recognition> recognizeFaces(final FaceSource source, boolean storeExtra) {
+    final int n = source.size();
+    final ArrayList<Recognition> recognitions = new ArrayList<>(n);
+    if (n == 0) {
+      return recognitions;
+    }
 
-    // Run the inference call.
+    final float[][] outputs;
+    if (n <= MAX_CACHED_BATCH) {
+      if (batchOutputs[n] == null) {
+        batchOutputs[n] = new float[n][OUTPUT_SIZE];
+      }
+      outputs = batchOutputs[n];
+    } else {
+      outputs = new float[n][OUTPUT_SIZE];
+    }
+
+    if (pool != null && n > 1) {
+      runPooled(source, outputs);
+    } else {
+      runBatch(source, outputs);
+    }
+
+    if (batchNames.length < n) {
+      batchNames = new String[n];
+      batchDistances = new float[n];
+    }
+    findNearest(outputs, batchNames, batchDistances);
+    for (int i = 0; i < n; ++i) {
+      lastResult.set(batchNames[i] == null ? "?" : batchNames[i], batchDistances[i], outputs[i]);
+      recognitions.add(toRecognition(lastResult, storeExtra));
+    }
+    return recognitions;
+  }
+
+  // Runs the interpreter once over all faces of the source.
+  private void runBatch(final FaceSource source, final float[][] outputs) {
+    final int n = source.size();
+    Trace.beginSection("preprocess");
+    final ByteBuffer input;
+    if (n <= MAX_CACHED_BATCH) {
+      if (batchInputs[n] == null) {
+        batchInputs[n] = ByteBuffer.allocateDirect(n * imgData.capacity());
+        batchInputs[n].order(ByteOrder.nativeOrder());
+      }
+      input = batchInputs[n];
+    } else {
+      input = ByteBuffer.allocateDirect(n * imgData.capacity());
+      input.order(ByteOrder.nativeOrder());
+    }
+    input.rewind();
+    for (int i = 0; i < n; ++i) {
+      source.write(i, input, intValues);
+    }
+    Trace.endSection(); // preprocess
+
+    // Run the inference call for all faces at once.
     Trace.beginSection("run");
-    //tfLite.runForMultipleInputsOutputs(inputArray, outputMapBack);
-    tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+    resizeBatch(n);
+    tfLite.run(input, outputs);
     Trace.endSection();
+  }
 
-//    String res = "[";
-//    for (int i = 0; i < embeedings[0].length; i++) {
-//      res += embeedings[0][i];
-//      if (i < embeedings[0].length - 1) res += ", ";
-//    }
-//    res += "]";
+  // Embeds the faces on the pooled interpreters; worker w takes faces w, w + poolSize, ...
+  private void runPooled(final FaceSource source, final float[][] outputs) {
+    Trace.beginSection("runPooled");
+    final int workers = Math.min(source.size(), pool.size());
+    for (int w = 0; w < workers; ++w) {
+      pool.get(w).assign(source, outputs, w, workers);
+    }
+    try {
+      for (final Future<Void> future : poolExecutor.invokeAll(pool.subList(0, workers))) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      for (int w = 0; w < workers; ++w) {
+        pool.get(w).assign(null, null, 0, 1);
+      }
+      Trace.endSection();
+    }
+  }
 
+  /**
+   * Index in use when a compaction starts, and its counterpart rebuilt by the compaction thread
+   * over the compacted rows. The counterpart replaces the index only if that one is still in use
+   * by then, a change of backend or parameters meanwhile makes it useless.
+   */
+  private static final class CompactedIndexes {
+    final GalleryIndex inUse;
 
-    float distance = Float.MAX_VALUE;
-    String id = "0";
-    String label = "?";
+    // Written by the compaction thread before done, with the generation of the compacted rows.
+    GalleryIndex rebuilt;
+    int generation = -1;
+    volatile boolean done;
 
-    if (registered.size() > 0) {
-      //LOGGER.i("dataset SIZE: " + registered.size());
-      final Pair<String, Float> nearest = findNearest(embeedings[0]);
-      if (nearest != null) {
+    CompactedIndexes(final GalleryIndex inUse) {
+      this.inUse = inUse;
+    }
 
-        final String name = nearest.first;
-        label = name;
-        distance = nearest.second;
+    // Builds the counterpart over the compacted rows, on the calling thread.
+    void rebuild(final EmbeddingRows rows) {
+      if (inUse != null) {
+        rebuilt = inUse.rebuild(rows);
+      }
+    }
+  }
 
-        LOGGER.i("nearest: " + name + " - distance: " + distance);
+  /** Writes the model input of the faces handled by one call. */
+  private interface FaceSource {
+    int size();
 
+    void write(int face, ByteBuffer buffer, int[] pixels);
+  }
 
-      }
+  /** Faces already cropped and scaled into bitmaps. */
+  private final class BitmapSource implements FaceSource {
+    private List<Bitmap> bitmaps;
+
+    @Override
+    public int size() {
+      return bitmaps.size();
     }
 
+    @Override
+    public void write(int face, ByteBuffer buffer, int[] pixels) {
+      fillInput(buffer, bitmaps.get(face), pixels);
+    }
+  }
 
-    final int numDetectionsOutput = 1;
-    final ArrayList<Recognition> recognitions = new ArrayList<>(numDetectionsOutput);
-    Recognition rec = new Recognition(
-            id,
-            label,
-            distance,
-            new RectF());
+  /** Faces sampled straight from a YUV camera frame. */
+  private final class YuvSource implements FaceSource {
+    private YuvFaceSampler frame;
+    private List<RectF> boxes;
 
-    recognitions.add( rec );
+    @Override
+    public int size() {
+      return boxes.size();
+    }
 
-    if (storeExtra) {
-      rec.setExtra(embeedings);
+    @Override
+    public void write(int face, ByteBuffer buffer, int[] pixels) {
+      frame.sample(boxes.get(face), inputSize, IMAGE_MEAN, IMAGE_STD, isModelQuantized, buffer);
     }
+  }
+
+  private void createPool(final MappedByteBuffer model, final int poolSize) {
+    pool = new ArrayList<>(poolSize);
+    for (int w = 0; w < poolSize; ++w) {
+      final Interpreter interpreter = new Interpreter(model);
+      interpreter.setNumThreads(1);
+      pool.add(new Worker(interpreter));
+    }
+    final AtomicInteger threadCount = new AtomicInteger();
+    poolExecutor = new ThreadPoolExecutor(
+            poolSize,
+            poolSize,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(poolSize),
+            r -> new Thread(r, "inference-pool-" + threadCount.getAndIncrement()));
+  }
+
+  /** One pooled interpreter with its own input and output buffers. */
+  private final class Worker implements Callable<Void> {
+    private final Interpreter interpreter;
+    private final ByteBuffer input;
+    private final int[] pixels;
+    private final float[][] output = new float[1][OUTPUT_SIZE];
 
+    // Work of the current call.
+    private FaceSource source;
+    private float[][] outputs;
+    private int first;
+    private int step;
+
+    Worker(final Interpreter interpreter) {
+      this.interpreter = interpreter;
+      this.input = ByteBuffer.allocateDirect(imgData.capacity());
+      this.input.order(ByteOrder.nativeOrder());
+      this.pixels = new int[inputSize * inputSize];
+    }
+
+    void assign(final FaceSource source, final float[][] outputs, int first, int step) {
+      this.source = source;
+      this.outputs = outputs;
+      this.first = first;
+      this.step = step;
+    }
+
+    @Override
+    public Void call() {
+      for (int i = first; i < source.size(); i += step) {
+        input.rewind();
+        source.write(i, input, pixels);
+        interpreter.run(input, output);
+        System.arraycopy(output[0], 0, outputs[i], 0, OUTPUT_SIZE);
+      }
+      return null;
+    }
+  }
+
+  // Resizes the input tensor to [n, inputSize, inputSize, 3] when the batch size changes.
+  private void resizeBatch(int n) {
+    if (n == batchSize) {
+      return;
+    }
+    int[] shape = n <= MAX_CACHED_BATCH ? batchShapes[n] : null;
+    if (shape == null) {
+      shape = new int[] {n, inputSize, inputSize, 3};
+      if (n <= MAX_CACHED_BATCH) {
+        batchShapes[n] = shape;
+      }
+    }
+    tfLite.resizeInput(0, shape);
+    batchSize = n;
+  }
+
+  @Override
+  public List<Recognition> recognizeTopK(final Bitmap bitmap, int k) {
+    Trace.beginSection("recognizeTopK");
+    runEmbedding(bitmap);
+
+    final String[] names = new String[k];
+    final float[] distances = new float[k];
+    final int n = findNearest(embeedings[0], k, names, distances);
+    final ArrayList<Recognition> recognitions = new ArrayList<>(n);
+    for (int i = 0; i < n; ++i) {
+      recognitions.add(new Recognition(String.valueOf(i), names[i], distances[i], new RectF()));
+    }
     Trace.endSection();
     return recognitions;
   }
 
+  @Override
+  public int findNearest(float[] embedding, int k, String[] names, float[] distances) {
+    k = Math.min(k, Math.min(names.length, distances.length));
+    if (k <= 0) {
+      return 0;
+    }
+    final MappedEmbeddingGallery mapped = mappedGallery;
+    if (mapped == null) {
+      syncGallery();
+      return findNearestIdentities(embedding, k, names, distances);
+    }
+    synchronized (mapped) {
+      return findNearestIdentities(embedding, k, names, distances);
+    }
+  }
+
+  // Top-k search over the pinned rows, names are looked up in the same rows.
+  private int findNearestIdentities(float[] embedding, int k, String[] names, float[] distances) {
+    if (topKIdentities.length < k) {
+      topKIdentities = new int[k];
+    }
+    topK.clear();
+    embedding = searchQuery(embedding);
+    if (backend == SearchBackend.IVF) {
+      updateIvf();
+    } else if (backend == SearchBackend.PRODUCT_QUANTIZATION) {
+      updatePq();
+    }
+    if (searchIndex != null) {
+      searchIndex.findNearest(embedding, k, topK);
+    } else if (mappedGallery != null) {
+      mappedGallery.findNearest(kernel, embedding, k, topK);
+    } else if (shardedSearch() != null) {
+      shardedSearch.findNearest(view, kernel, embedding, k, topK);
+    } else {
+      view.findNearest(kernel, embedding, k, topK);
+    }
+    final int n = topK.drainAscending(topKIdentities, distances);
+    for (int i = 0; i < n; ++i) {
+      names[i] = mappedGallery != null
+              ? mappedGallery.getIdentityName(topKIdentities[i])
+              : view.getIdentityName(topKIdentities[i]);
+      // Index scores are squared L2 distances, which the L2 and cosine kernels report alike.
+      distances[i] = kernel.toDistance(distances[i]);
+    }
+    return n;
+  }
+
   @Override
   public void enableStatLogging(final boolean logStats) {}
 
@@ -306,7 +1600,47 @@ public class TFLiteObjectDetectionAPIModel
   }
 
   @Override
-  public void close() {}
+  public void close() {
+    if (shardedSearch != null) {
+      shardedSearch.close();
+      shardedSearch = null;
+    }
+    if (trainingExecutor != null) {
+      trainingExecutor.shutdownNow();
+      trainingExecutor = null;
+    }
+    synchronized (this) {
+      if (compactionExecutor != null) {
+        compactionExecutor.shutdownNow();
+        compactionExecutor = null;
+      }
+    }
+    // A compaction still running must not write to the file once this classifier is closed,
+    // another one may own it by then: it saves the heap gallery only while galleryFile is set,
+    // and swaps in a compacted file only while mappedGallery is, both checked under the lock.
+    synchronized (registered) {
+      galleryFile = null;
+    }
+    final MappedEmbeddingGallery mapped = mappedGallery;
+    if (mapped != null) {
+      synchronized (mapped) {
+        mappedGallery = null;
+        try {
+          mapped.close();
+        } catch (final IOException e) {
+          LOGGER.e(e, "Could not close the mapped gallery");
+        }
+      }
+    }
+    if (poolExecutor != null) {
+      poolExecutor.shutdown();
+      for (final Worker worker : pool) {
+        worker.interpreter.close();
+      }
+      poolExecutor = null;
+      pool = null;
+    }
+  }
 
   public void setNumThreads(int num_threads) {
     if (tfLite != null) tfLite.setNumThreads(num_threads);
@@ -315,5 +1649,10 @@ public class TFLiteObjectDetectionAPIModel
   @Override
   public void setUseNNAPI(boolean isChecked) {
     if (tfLite != null) tfLite.setUseNNAPI(isChecked);
+    if (pool != null) {
+      for (final Worker worker : pool) {
+        worker.interpreter.setUseNNAPI(isChecked);
+      }
+    }
   }
 }
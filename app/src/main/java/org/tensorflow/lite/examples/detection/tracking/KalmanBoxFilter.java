@@ -0,0 +1,110 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tracking;
+
+import android.graphics.RectF;
+
+/**
+ * Constant-velocity Kalman filter over a box, tracking center x, center y, width and height.
+ *
+ * Each coordinate has its own position and velocity with a 2x2 covariance; the coordinates are
+ * assumed independent, which keeps predict and update to a handful of multiplications. Time is
+ * measured in frames.
+ */
+final class KalmanBoxFilter {
+  // Variance of the white-noise acceleration, in pixels^2 per frame^4.
+  private static final float PROCESS_NOISE = 4.0f;
+  // Variance of a detected coordinate, in pixels^2.
+  private static final float MEASUREMENT_NOISE = 16.0f;
+  // Variance of the initial velocity, which is unknown at birth.
+  private static final float INITIAL_VELOCITY_VARIANCE = 100.0f;
+
+  private final float[] position = new float[4];
+  private final float[] velocity = new float[4];
+  // Detected box of the current update.
+  private final float[] measurement = new float[4];
+  // Covariance of each coordinate: [p00, p01, p11].
+  private final float[] covariance = new float[12];
+
+  KalmanBoxFilter(final RectF box) {
+    measure(box, position);
+    for (int i = 0; i < 4; ++i) {
+      covariance[3 * i] = MEASUREMENT_NOISE;
+      covariance[3 * i + 2] = INITIAL_VELOCITY_VARIANCE;
+    }
+  }
+
+  /** Advances the state by {@code frames} frames. */
+  void predict(final float frames) {
+    final float dt = frames;
+    final float dt2 = dt * dt;
+    final float q00 = PROCESS_NOISE * dt2 * dt2 / 4;
+    final float q01 = PROCESS_NOISE * dt2 * dt / 2;
+    final float q11 = PROCESS_NOISE * dt2;
+    for (int i = 0; i < 4; ++i) {
+      position[i] += velocity[i] * dt;
+      final int c = 3 * i;
+      final float p00 = covariance[c];
+      final float p01 = covariance[c + 1];
+      final float p11 = covariance[c + 2];
+      covariance[c] = p00 + 2 * dt * p01 + dt2 * p11 + q00;
+      covariance[c + 1] = p01 + dt * p11 + q01;
+      covariance[c + 2] = p11 + q11;
+    }
+    // Shrinking boxes must not turn inside out while coasting.
+    position[2] = Math.max(position[2], 1.0f);
+    position[3] = Math.max(position[3], 1.0f);
+  }
+
+  /** Corrects the state with a detected box. */
+  void update(final RectF box) {
+    final float[] z = measurement;
+    measure(box, z);
+    for (int i = 0; i < 4; ++i) {
+      final int c = 3 * i;
+      final float p00 = covariance[c];
+      final float p01 = covariance[c + 1];
+      final float p11 = covariance[c + 2];
+      final float s = p00 + MEASUREMENT_NOISE;
+      final float k0 = p00 / s;
+      final float k1 = p01 / s;
+      final float innovation = z[i] - position[i];
+      position[i] += k0 * innovation;
+      velocity[i] += k1 * innovation;
+      covariance[c] = (1 - k0) * p00;
+      covariance[c + 1] = (1 - k0) * p01;
+      covariance[c + 2] = p11 - k1 * p01;
+    }
+  }
+
+  /** Writes the current box estimate into {@code out}. */
+  void getBox(final RectF out) {
+    final float halfWidth = position[2] / 2;
+    final float halfHeight = position[3] / 2;
+    out.set(
+        position[0] - halfWidth,
+        position[1] - halfHeight,
+        position[0] + halfWidth,
+        position[1] + halfHeight);
+  }
+
+  private static void measure(final RectF box, final float[] out) {
+    out[0] = box.centerX();
+    out[1] = box.centerY();
+    out[2] = box.width();
+    out[3] = box.height();
+  }
+}
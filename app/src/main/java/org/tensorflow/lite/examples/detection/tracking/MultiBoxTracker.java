@@ -28,6 +28,8 @@ import android.graphics.RectF;
 import android.text.TextUtils;
 import android.util.Pair;
 import android.util.TypedValue;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -36,10 +38,23 @@ import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
 import org.tensorflow.lite.examples.detection.tflite.SimilarityClassifier.Recognition;
 
-/** A tracker that handles non-max suppression and matches existing objects to new detections. */
+/**
+ * A tracker that matches existing objects to new detections.
+ *
+ * Detections are associated greedily with the tracks whose predicted boxes they overlap most.
+ * Every track smooths and predicts its box with a constant-velocity Kalman filter, keeps a stable
+ * id for as long as it lives, and dies after going unmatched for {@link #MAX_AGE} processed
+ * frames. Frames dropped by the pipeline do not age tracks, but do advance their prediction.
+ */
 public class MultiBoxTracker {
   private static final float TEXT_SIZE_DIP = 18;
   private static final float MIN_SIZE = 16.0f;
+  // Minimum overlap between a predicted box and a detection for them to be associated.
+  private static final float MIN_IOU = 0.3f;
+  // Processed frames a track survives without a matching detection.
+  private static final long MAX_AGE = 5;
+  // Matches after which a track is still drawn at its predicted box while unmatched.
+  private static final int MIN_HITS = 3;
   private static final int[] COLORS = {
     Color.BLUE,
     Color.RED,
@@ -60,7 +75,7 @@ public class MultiBoxTracker {
   final List<Pair<Float, RectF>> screenRects = new LinkedList<Pair<Float, RectF>>();
   private final Logger logger = new Logger();
   private final Queue<Integer> availableColors = new LinkedList<Integer>();
-  private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
+  private final List<TrackedRecognition> trackedObjects = new ArrayList<TrackedRecognition>();
   private final Paint boxPaint = new Paint();
   private final float textSizePx;
   private final BorderedText borderedText;
@@ -68,6 +83,11 @@ public class MultiBoxTracker {
   private int frameWidth;
   private int frameHeight;
   private int sensorOrientation;
+  private int nextTrackId;
+  private long lastTimestamp;
+  // Frames passed through updateTracks so far. Tracks age by these rather than by timestamps,
+  // which skip the frames the pipeline dropped.
+  private long processedFrames;
 
   public MultiBoxTracker(final Context context) {
     for (final int color : COLORS) {
@@ -114,7 +134,31 @@ public class MultiBoxTracker {
 
   public synchronized void trackResults(final List<Recognition> results, final long timestamp) {
     logger.i("Processing %d results from %d", results.size(), timestamp);
-    processResults(results);
+    final List<RectF> locations = new ArrayList<RectF>(results.size());
+    for (final Recognition result : results) {
+      locations.add(result.getLocation());
+    }
+    processResults(results, updateTracks(locations, timestamp));
+  }
+
+  /**
+   * Labels tracks already updated by {@link #assignTracks} for the same frame.
+   *
+   * @param trackIds The ids returned by {@link #assignTracks}, one per result.
+   */
+  public synchronized void trackResults(
+      final List<Recognition> results, final int[] trackIds, final long timestamp) {
+    logger.i("Processing %d tracked results from %d", results.size(), timestamp);
+    processResults(results, trackIds);
+  }
+
+  /**
+   * Associates the boxes detected in a frame with the tracks, before they are recognized.
+   *
+   * @return the stable track id of each box, -1 for boxes that are not tracked.
+   */
+  public synchronized int[] assignTracks(final List<RectF> locations, final long timestamp) {
+    return updateTracks(locations, timestamp);
   }
 
   private Matrix getFrameToCanvasMatrix() {
@@ -136,6 +180,9 @@ public class MultiBoxTracker {
             sensorOrientation,
             false);
     for (final TrackedRecognition recognition : trackedObjects) {
+      if (recognition.lastSeen != lastTimestamp && recognition.hits < MIN_HITS) {
+        continue;
+      }
       final RectF trackedPos = new RectF(recognition.location);
 
       getFrameToCanvasMatrix().mapRect(trackedPos);
@@ -161,13 +208,13 @@ public class MultiBoxTracker {
     }
   }
 
-  private void processResults(final List<Recognition> results) {
-    final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<Pair<Float, Recognition>>();
-
+  private void processResults(final List<Recognition> results, final int[] trackIds) {
     screenRects.clear();
     final Matrix rgbFrameToScreen = new Matrix(getFrameToCanvasMatrix());
 
+    int index = 0;
     for (final Recognition result : results) {
+      final int trackId = trackIds[index++];
       if (result.getLocation() == null) {
         continue;
       }
@@ -181,44 +228,168 @@ public class MultiBoxTracker {
 
       screenRects.add(new Pair<Float, RectF>(result.getDistance(), detectionScreenRect));
 
-      if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
-        logger.w("Degenerate rectangle! " + detectionFrameRect);
+      final TrackedRecognition track = findTrack(trackId);
+      if (track == null) {
         continue;
       }
+      track.detectionConfidence = result.getDistance();
+      track.title = result.getTitle();
+      if (result.getColor() != null) {
+        track.color = result.getColor();
+      }
+    }
+  }
 
-      rectsToTrack.add(new Pair<Float, Recognition>(result.getDistance(), result));
+  private int[] updateTracks(final List<RectF> locations, final long timestamp) {
+    final int[] trackIds = new int[locations.size()];
+    final List<RectF> rectsToTrack = new ArrayList<RectF>(locations.size());
+    int index = 0;
+    for (final RectF location : locations) {
+      trackIds[index++] = -1;
+      if (location == null) {
+        continue;
+      }
+      if (location.width() < MIN_SIZE || location.height() < MIN_SIZE) {
+        logger.w("Degenerate rectangle! " + location);
+        continue;
+      }
+      rectsToTrack.add(location);
     }
 
-    trackedObjects.clear();
-    if (rectsToTrack.isEmpty()) {
-      logger.v("Nothing to track, aborting.");
-      return;
+    lastTimestamp = timestamp;
+    ++processedFrames;
+    for (final TrackedRecognition track : trackedObjects) {
+      track.filter.predict(Math.max(0, timestamp - track.predicted));
+      track.filter.getBox(track.location);
+      track.predicted = timestamp;
     }
 
-    for (final Pair<Float, Recognition> potential : rectsToTrack) {
-      final TrackedRecognition trackedRecognition = new TrackedRecognition();
-      trackedRecognition.detectionConfidence = potential.first;
-      trackedRecognition.location = new RectF(potential.second.getLocation());
-      trackedRecognition.title = potential.second.getTitle();
-      if (potential.second.getColor() != null) {
-        trackedRecognition.color = potential.second.getColor();
+    final TrackedRecognition[] matches = associate(rectsToTrack);
+
+    int match = 0;
+    index = 0;
+    for (final RectF location : locations) {
+      final int box = index++;
+      if (location == null || location.width() < MIN_SIZE || location.height() < MIN_SIZE) {
+        continue;
       }
-      else {
-        trackedRecognition.color = COLORS[trackedObjects.size()];
+      TrackedRecognition track = matches[match++];
+      if (track == null) {
+        if (trackedObjects.size() >= COLORS.length) {
+          continue;
+        }
+        track = new TrackedRecognition(nextTrackId++, location, timestamp);
+        trackedObjects.add(track);
+      } else {
+        track.filter.update(location);
+        track.filter.getBox(track.location);
+      }
+      ++track.hits;
+      track.lastSeen = timestamp;
+      track.lastSeenFrame = processedFrames;
+      trackIds[box] = track.id;
+    }
 
+    for (final Iterator<TrackedRecognition> it = trackedObjects.iterator(); it.hasNext(); ) {
+      final TrackedRecognition track = it.next();
+      if (processedFrames - track.lastSeenFrame > MAX_AGE) {
+        logger.v("Track %d lost", track.id);
+        it.remove();
       }
-      trackedObjects.add(trackedRecognition);
+    }
+    return trackIds;
+  }
 
-      if (trackedObjects.size() >= COLORS.length) {
-        break;
+  private TrackedRecognition findTrack(final int id) {
+    if (id < 0) {
+      return null;
+    }
+    for (final TrackedRecognition track : trackedObjects) {
+      if (track.id == id) {
+        return track;
       }
     }
+    return null;
+  }
+
+  /**
+   * Greedily pairs detections with the tracks they overlap most, best overlap first.
+   *
+   * @return the track matched to each detection, null for detections starting a new track.
+   */
+  private TrackedRecognition[] associate(final List<RectF> detections) {
+    final int tracks = trackedObjects.size();
+    final int count = detections.size();
+    final TrackedRecognition[] matches = new TrackedRecognition[count];
+    if (tracks == 0 || count == 0) {
+      return matches;
+    }
+
+    final float[] overlap = new float[tracks * count];
+    for (int t = 0; t < tracks; ++t) {
+      final RectF predicted = trackedObjects.get(t).location;
+      int d = 0;
+      for (final RectF detection : detections) {
+        overlap[t * count + d++] = iou(predicted, detection);
+      }
+    }
+
+    while (true) {
+      int best = -1;
+      float bestOverlap = MIN_IOU;
+      for (int i = 0; i < overlap.length; ++i) {
+        if (overlap[i] >= bestOverlap) {
+          bestOverlap = overlap[i];
+          best = i;
+        }
+      }
+      if (best < 0) {
+        return matches;
+      }
+      final int t = best / count;
+      final int d = best % count;
+      matches[d] = trackedObjects.get(t);
+      for (int i = 0; i < count; ++i) {
+        overlap[t * count + i] = -1;
+      }
+      for (int i = 0; i < tracks; ++i) {
+        overlap[i * count + d] = -1;
+      }
+    }
+  }
+
+  private static float iou(final RectF a, final RectF b) {
+    final float width = Math.min(a.right, b.right) - Math.max(a.left, b.left);
+    final float height = Math.min(a.bottom, b.bottom) - Math.max(a.top, b.top);
+    if (width <= 0 || height <= 0) {
+      return 0;
+    }
+    final float intersection = width * height;
+    return intersection / (a.width() * a.height() + b.width() * b.height() - intersection);
   }
 
   private static class TrackedRecognition {
-    RectF location;
+    final int id;
+    final KalmanBoxFilter filter;
+    final RectF location;
     float detectionConfidence;
     int color;
     String title;
+    // Number of detections matched so far.
+    int hits;
+    // Timestamps of the last matched detection and of the last prediction.
+    long lastSeen;
+    long predicted;
+    // Processed frame of the last matched detection, see processedFrames.
+    long lastSeenFrame;
+
+    TrackedRecognition(final int id, final RectF location, final long timestamp) {
+      this.id = id;
+      this.filter = new KalmanBoxFilter(location);
+      this.location = new RectF(location);
+      this.color = COLORS[id % COLORS.length];
+      this.detectionConfidence = -1;
+      this.predicted = timestamp;
+    }
   }
 }
@@ -0,0 +1,142 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tracking;
+
+import android.graphics.RectF;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Caches the identity recognized for each track, so a face is embedded again only when its track
+ * is new, its identity has not been verified for a while, its box or pose changed noticeably
+ * since, or the last match was too close to the acceptance threshold to be trusted.
+ */
+public class RecognitionScheduler {
+  private final long maxAgeMs;
+  private final float maxSizeChange;
+  private final float maxPoseChange;
+  private final float acceptDistance;
+  private final float ambiguousMargin;
+
+  private final Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+  private long recognized;
+  private long reused;
+
+  /**
+   * @param maxAgeMs How long a verified identity is reused.
+   * @param maxSizeChange Relative change of box width or height that triggers recognition.
+   * @param maxPoseChange Change of head yaw or roll, in degrees, that triggers recognition.
+   * @param acceptDistance Distance below which a match is accepted.
+   * @param ambiguousMargin Matches closer than this to acceptDistance are never reused.
+   */
+  public RecognitionScheduler(
+      final long maxAgeMs,
+      final float maxSizeChange,
+      final float maxPoseChange,
+      final float acceptDistance,
+      final float ambiguousMargin) {
+    this.maxAgeMs = maxAgeMs;
+    this.maxSizeChange = maxSizeChange;
+    this.maxPoseChange = maxPoseChange;
+    this.acceptDistance = acceptDistance;
+    this.ambiguousMargin = ambiguousMargin;
+  }
+
+  /** Returns whether the face of a track has to be embedded, or its cached identity reused. */
+  public synchronized boolean needsRecognition(
+      final int trackId, final RectF box, final float yaw, final float roll, final long now) {
+    final Entry entry = trackId < 0 ? null : entries.get(trackId);
+    final boolean needed =
+        entry == null
+            || now - entry.verifiedAt > maxAgeMs
+            || Math.abs(box.width() / entry.width - 1) > maxSizeChange
+            || Math.abs(box.height() / entry.height - 1) > maxSizeChange
+            || Math.abs(yaw - entry.yaw) > maxPoseChange
+            || Math.abs(roll - entry.roll) > maxPoseChange
+            || Math.abs(entry.distance - acceptDistance) < ambiguousMargin;
+    if (needed) {
+      ++recognized;
+    } else {
+      ++reused;
+    }
+    return needed;
+  }
+
+  /** Records the identity just recognized for a track. */
+  public synchronized void update(
+      final int trackId,
+      final RectF box,
+      final float yaw,
+      final float roll,
+      final String title,
+      final float distance,
+      final long now) {
+    if (trackId < 0) {
+      return;
+    }
+    Entry entry = entries.get(trackId);
+    if (entry == null) {
+      entry = new Entry();
+      entries.put(trackId, entry);
+    }
+    entry.width = box.width();
+    entry.height = box.height();
+    entry.yaw = yaw;
+    entry.roll = roll;
+    entry.title = title;
+    entry.distance = distance;
+    entry.verifiedAt = now;
+  }
+
+  public synchronized String getTitle(final int trackId) {
+    final Entry entry = entries.get(trackId);
+    return entry != null ? entry.title : null;
+  }
+
+  public synchronized float getDistance(final int trackId) {
+    final Entry entry = entries.get(trackId);
+    return entry != null ? entry.distance : Float.MAX_VALUE;
+  }
+
+  /** Forgets every identity, e.g. after the gallery changed. */
+  public synchronized void invalidate() {
+    entries.clear();
+  }
+
+  /** Drops the entries too old to be reused, which also covers tracks that died. */
+  public synchronized void evict(final long now) {
+    for (final Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+      if (now - it.next().verifiedAt > maxAgeMs) {
+        it.remove();
+      }
+    }
+  }
+
+  public synchronized String getStatString() {
+    return "recognized " + recognized + ", reused " + reused;
+  }
+
+  private static class Entry {
+    float width;
+    float height;
+    float yaw;
+    float roll;
+    String title;
+    float distance;
+    long verifiedAt;
+  }
+}
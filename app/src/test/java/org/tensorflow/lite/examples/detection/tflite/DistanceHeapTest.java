@@ -0,0 +1,57 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class DistanceHeapTest {
+
+  @Test
+  public void offerKeepsNearestDistinctIds() {
+    final DistanceHeap heap = new DistanceHeap(2, true);
+    heap.offer(1, 5f, 3);
+    heap.offer(2, 1f, 3);
+    heap.offer(3, 4f, 3);
+    heap.offer(1, 2f, 3);
+    heap.offer(4, 3f, 3);
+    heap.offer(5, 9f, 3);
+
+    final int[] ids = new int[3];
+    final float[] distances = new float[3];
+    assertEquals(3, heap.drainAscending(ids, distances));
+    assertArrayEquals(new int[] {2, 1, 4}, ids);
+    assertArrayEquals(new float[] {1f, 2f, 3f}, distances, 0f);
+    assertEquals(0, heap.size());
+  }
+
+  @Test
+  public void minHeapPopsNearestFirst() {
+    final DistanceHeap heap = new DistanceHeap(1, false);
+    final float[] distances = {3f, 0.5f, 7f, 2f, 2.5f};
+    for (int i = 0; i < distances.length; ++i) {
+      heap.push(i, distances[i]);
+    }
+
+    final int[] order = new int[distances.length];
+    for (int i = 0; i < order.length; ++i) {
+      order[i] = heap.pop();
+    }
+    assertArrayEquals(new int[] {1, 3, 4, 0, 2}, order);
+  }
+}
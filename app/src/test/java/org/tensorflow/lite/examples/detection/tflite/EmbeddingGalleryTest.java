@@ -0,0 +1,126 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class EmbeddingGalleryTest {
+
+  @Test
+  public void removeMarksRowsDeletedWithoutRenumbering() {
+    final EmbeddingGallery gallery = Galleries.clustered(5, 3, 1);
+    final float[] removed = Galleries.row(gallery.snapshot(), 6);
+    final float[] kept = Galleries.row(gallery.snapshot(), 9);
+
+    assertTrue(gallery.remove("id2"));
+    assertFalse(gallery.remove("id2"));
+
+    assertEquals(15, gallery.size());
+    assertEquals(3, gallery.getDeletedCount());
+    for (int r = 6; r < 9; ++r) {
+      assertEquals(EmbeddingRows.DELETED, gallery.getRowIdentity(r));
+    }
+    assertEquals("id3", gallery.getIdentity(9));
+    assertArrayEquals(kept, Galleries.row(gallery.snapshot(), 9), 0f);
+    final int nearest = gallery.findNearest(removed, new float[1]);
+    assertTrue(nearest >= 0);
+    assertNotEquals("id2", gallery.getIdentity(nearest));
+  }
+
+  @Test
+  public void registerAgainDeletesPreviousShots() {
+    final EmbeddingGallery gallery = Galleries.clustered(3, 2, 2);
+    final float[] shot = Galleries.gaussian(new Random(3), 1f);
+
+    assertTrue(gallery.register("id0", new float[][] {shot}));
+
+    assertEquals(7, gallery.size());
+    assertEquals(2, gallery.getDeletedCount());
+    assertEquals(1, gallery.getShotCount("id0"));
+    final float[] distance = new float[1];
+    assertEquals(6, gallery.findNearest(shot, distance));
+    assertEquals(0f, distance[0], 1e-6f);
+  }
+
+  @Test
+  public void snapshotIsUnaffectedByLaterChanges() {
+    final EmbeddingGallery gallery = Galleries.clustered(3, 2, 4);
+    final EmbeddingGallery.Snapshot before = gallery.snapshot();
+
+    gallery.remove("id1");
+    gallery.register("id3", Galleries.gaussian(new Random(5), 1f));
+
+    assertEquals(6, before.size());
+    assertEquals(0, before.getDeletedCount());
+    assertEquals("id1", before.getIdentity(2));
+  }
+
+  @Test
+  public void compactDropsDeletedRowsAndStartsNewGeneration() {
+    final EmbeddingGallery gallery = Galleries.clustered(5, 3, 6);
+    final EmbeddingGallery.Snapshot before = gallery.snapshot();
+    gallery.remove("id1");
+    gallery.remove("id3");
+
+    assertTrue(gallery.compact());
+
+    final EmbeddingGallery.Snapshot after = gallery.snapshot();
+    assertEquals(9, after.size());
+    assertEquals(0, after.getDeletedCount());
+    assertEquals(3, after.getIdentityNameCount());
+    assertNotEquals(before.getGeneration(), after.getGeneration());
+    final String[] names = {"id0", "id2", "id4"};
+    for (int r = 0; r < after.size(); ++r) {
+      final int original = (r / 3 == 0 ? 0 : r / 3 == 1 ? 2 : 4) * 3 + r % 3;
+      assertEquals(names[r / 3], after.getIdentity(r));
+      assertArrayEquals(Galleries.row(before, original), Galleries.row(after, r), 0f);
+    }
+    // Searches still running on the previous generation see its rows.
+    assertEquals(15, before.size());
+    assertEquals("id1", before.getIdentity(3));
+  }
+
+  @Test
+  public void compactWithoutDeletedRowsKeepsGeneration() {
+    final EmbeddingGallery gallery = Galleries.clustered(3, 2, 7);
+    final int generation = gallery.snapshot().getGeneration();
+
+    assertFalse(gallery.compact());
+    assertEquals(generation, gallery.snapshot().getGeneration());
+  }
+
+  @Test
+  public void maxShotsKeepsNewestRows() {
+    final EmbeddingGallery gallery = Galleries.clustered(2, 4, 8);
+    final float[] newest = Galleries.row(gallery.snapshot(), 3);
+
+    assertTrue(gallery.setMaxShots(2));
+    assertEquals(4, gallery.size());
+    assertEquals(2, gallery.getShotCount("id0"));
+    assertArrayEquals(newest, Galleries.row(gallery.snapshot(), 1), 0f);
+
+    gallery.add("id0", Galleries.gaussian(new Random(9), 1f));
+    assertEquals(2, gallery.getShotCount("id0"));
+    assertEquals(1, gallery.getDeletedCount());
+  }
+}
@@ -0,0 +1,62 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Random;
+
+/** Galleries of well separated identities, each with a few shots around its own center. */
+final class Galleries {
+  static final int DIM = 128;
+
+  private Galleries() {}
+
+  /** Identity {@code i} is named {@code "id" + i}, with {@code shots} rows. */
+  static EmbeddingGallery clustered(final int identities, final int shots, final long seed) {
+    final Random random = new Random(seed);
+    final EmbeddingGallery gallery = new EmbeddingGallery(DIM);
+    for (int i = 0; i < identities; ++i) {
+      final float[] center = gaussian(random, 1f);
+      final float[][] values = new float[shots][];
+      for (int s = 0; s < shots; ++s) {
+        values[s] = near(center, random, 0.1f);
+      }
+      gallery.register("id" + i, values);
+    }
+    return gallery;
+  }
+
+  static float[] gaussian(final Random random, final float sigma) {
+    final float[] value = new float[DIM];
+    for (int j = 0; j < DIM; ++j) {
+      value[j] = (float) random.nextGaussian() * sigma;
+    }
+    return value;
+  }
+
+  static float[] near(final float[] center, final Random random, final float sigma) {
+    final float[] value = gaussian(random, sigma);
+    for (int j = 0; j < DIM; ++j) {
+      value[j] += center[j];
+    }
+    return value;
+  }
+
+  static float[] row(final EmbeddingRows rows, final int row) {
+    final float[] value = new float[rows.getDimension()];
+    rows.copyRow(row, value);
+    return value;
+  }
+}
@@ -0,0 +1,185 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GalleryFileTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void readRestoresWrittenRows() throws IOException {
+    final EmbeddingGallery gallery = Galleries.clustered(10, 3, 1);
+    final File file = new File(folder.getRoot(), "gallery.bin");
+    GalleryFile.write(file, gallery);
+
+    assertSameRows(gallery, read(file));
+  }
+
+  @Test
+  public void readLeavesDeletedRowsOut() throws IOException {
+    final EmbeddingGallery gallery = Galleries.clustered(10, 3, 2);
+    gallery.remove("id4");
+    final File file = new File(folder.getRoot(), "gallery.bin");
+    GalleryFile.write(file, gallery);
+
+    final EmbeddingGallery loaded = read(file);
+    assertEquals(27, loaded.size());
+    assertEquals(0, loaded.getDeletedCount());
+    assertEquals(0, loaded.getShotCount("id4"));
+    gallery.compact();
+    assertSameRows(gallery, loaded);
+  }
+
+  @Test
+  public void appendKeepsEarlierRowsAndDeletions() throws IOException {
+    final EmbeddingGallery gallery = Galleries.clustered(10, 3, 3);
+    final File file = new File(folder.getRoot(), "gallery.bin");
+    GalleryFile.write(file, gallery);
+
+    final int firstRow = gallery.size();
+    gallery.remove("id1");
+    gallery.register("new", new float[][] {Galleries.gaussian(new Random(4), 1f)});
+    GalleryFile.append(file, gallery, firstRow);
+
+    gallery.compact();
+    assertSameRows(gallery, read(file));
+  }
+
+  @Test
+  public void readsVersion1Files() throws IOException {
+    final float[][] rows = {
+      Galleries.gaussian(new Random(5), 1f),
+      Galleries.gaussian(new Random(6), 1f),
+      Galleries.gaussian(new Random(7), 1f)
+    };
+    final int[] identities = {0, 1, 0};
+    final String[] names = {"alice", "bob"};
+    final File file = new File(folder.getRoot(), "gallery.bin");
+    Files.write(file.toPath(), version1(rows, identities, names));
+
+    final EmbeddingGallery loaded = read(file);
+    assertEquals(3, loaded.size());
+    for (int r = 0; r < rows.length; ++r) {
+      assertEquals(names[identities[r]], loaded.getIdentity(r));
+      assertArrayEquals(rows[r], Galleries.row(loaded.snapshot(), r), 0f);
+    }
+  }
+
+  @Test
+  public void readRecoversTablesOfInterruptedUpdate() throws IOException {
+    final EmbeddingGallery gallery = Galleries.clustered(10, 3, 8);
+    final File file = new File(folder.getRoot(), "gallery.bin");
+    GalleryFile.write(file, gallery);
+    final byte[] written = Files.readAllBytes(file.toPath());
+
+    // An update saves the header and tables to the journal, then writes the new rows over the
+    // old tables. A crash at that point leaves the file without valid tables.
+    final int tableOffset = GalleryFile.HEADER_BYTES + gallery.size() * Galleries.DIM * 4;
+    final byte[] journal = new byte[written.length - tableOffset + GalleryFile.HEADER_BYTES];
+    System.arraycopy(written, 0, journal, 0, GalleryFile.HEADER_BYTES);
+    System.arraycopy(written, tableOffset, journal, GalleryFile.HEADER_BYTES,
+            written.length - tableOffset);
+    final File journalFile = new File(file.getPath() + ".journal");
+    Files.write(journalFile.toPath(), journal);
+    final byte[] rows = new byte[3 * Galleries.DIM * 4];
+    new Random(9).nextBytes(rows);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(tableOffset);
+      raf.write(rows);
+    }
+
+    final EmbeddingGallery loaded = read(file);
+    assertSameRows(gallery, loaded);
+    assertFalse(journalFile.exists());
+    assertTrue(Arrays.equals(written, Files.readAllBytes(file.toPath())));
+  }
+
+  @Test(expected = IOException.class)
+  public void readRejectsRowCountBeyondTheFile() throws IOException {
+    final File file = new File(folder.getRoot(), "gallery.bin");
+    GalleryFile.write(file, Galleries.clustered(2, 2, 10));
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      // Little endian row count at byte 12, large enough to overflow an int offset.
+      raf.seek(12);
+      raf.write(new byte[] {0, 0, 0, 0x10});
+    }
+    read(file);
+  }
+
+  @Test(expected = IOException.class)
+  public void readRejectsOtherDimension() throws IOException {
+    final File file = new File(folder.getRoot(), "gallery.bin");
+    GalleryFile.write(file, Galleries.clustered(2, 2, 11));
+    GalleryFile.read(file, new EmbeddingGallery(Galleries.DIM / 2));
+  }
+
+  private static EmbeddingGallery read(final File file) throws IOException {
+    final EmbeddingGallery gallery = new EmbeddingGallery(Galleries.DIM);
+    GalleryFile.read(file, gallery);
+    return gallery;
+  }
+
+  private static void assertSameRows(
+          final EmbeddingGallery expected, final EmbeddingGallery actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int r = 0; r < expected.size(); ++r) {
+      assertEquals(expected.getIdentity(r), actual.getIdentity(r));
+      assertArrayEquals(
+              Galleries.row(expected.snapshot(), r), Galleries.row(actual.snapshot(), r), 0f);
+    }
+  }
+
+  // Layout of the first file version: no row is ever deleted.
+  private static byte[] version1(
+          final float[][] rows, final int[] identities, final String[] names) {
+    final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(GalleryFile.MAGIC)
+        .putInt(1)
+        .putInt(Galleries.DIM)
+        .putInt(rows.length)
+        .putInt(names.length);
+    for (final float[] row : rows) {
+      for (final float value : row) {
+        buffer.putFloat(value);
+      }
+    }
+    for (final int identity : identities) {
+      buffer.putInt(identity);
+    }
+    for (final String name : names) {
+      final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+      buffer.putInt(bytes.length).put(bytes);
+    }
+    return Arrays.copyOf(buffer.array(), buffer.position());
+  }
+}
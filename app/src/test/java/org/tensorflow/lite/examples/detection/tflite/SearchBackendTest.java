@@ -0,0 +1,152 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Every search backend against the exact scan, over a gallery with deleted rows: the nearest
+ * identity should mostly agree, and a deleted row should never be returned.
+ */
+public class SearchBackendTest {
+  private static final int IDENTITIES = 50;
+  private static final int SHOTS = 4;
+  private static final int K = 3;
+
+  private final DistanceKernel kernel =
+          DistanceKernel.create(SimilarityClassifier.Metric.EUCLIDEAN, Galleries.DIM);
+  private EmbeddingGallery gallery;
+  private final List<float[]> queries = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    gallery = Galleries.clustered(IDENTITIES, SHOTS, 1);
+    // Queries near every identity, the removed ones included.
+    final Random random = new Random(2);
+    for (int r = 0; r < gallery.size(); r += 2) {
+      queries.add(Galleries.near(Galleries.row(gallery.snapshot(), r), random, 0.05f));
+    }
+    gallery.remove("id7");
+    gallery.remove("id21");
+  }
+
+  @Test
+  public void quantizedIndexMatchesExactScan() {
+    assertMatchesExactScan(new QuantizedIndex(gallery.snapshot(), 8), 1f);
+  }
+
+  @Test
+  public void halfPrecisionIndexMatchesExactScan() {
+    assertMatchesExactScan(new HalfPrecisionIndex(gallery.snapshot()), 1f);
+  }
+
+  @Test
+  public void signHashIndexMatchesExactScan() {
+    assertMatchesExactScan(new SignHashIndex(gallery.snapshot(), 256, 32), 0.9f);
+  }
+
+  @Test
+  public void prototypeIndexMatchesExactScan() {
+    assertMatchesExactScan(new PrototypeIndex(gallery.snapshot(), 4), 0.95f);
+  }
+
+  @Test
+  public void hnswIndexMatchesExactScan() {
+    assertMatchesExactScan(new HnswIndex(gallery.snapshot(), 8, 50), 0.95f);
+  }
+
+  @Test
+  public void ivfIndexProbingEveryListMatchesExactScan() {
+    final float[] centroids = IvfIndex.trainer(gallery.snapshot(), 8).call();
+    assertMatchesExactScan(new IvfIndex(gallery.snapshot(), centroids, 8), 1f);
+  }
+
+  @Test
+  public void productQuantizationIndexMatchesExactScan() {
+    final float[] codebooks = ProductQuantizationIndex.trainer(gallery.snapshot(), 16).call();
+    assertMatchesExactScan(
+            new ProductQuantizationIndex(gallery.snapshot(), 16, 16, codebooks), 0.95f);
+  }
+
+  @Test
+  public void indexRebuiltOverCompactedRowsMatchesExactScan() {
+    final GalleryIndex index = new QuantizedIndex(gallery.snapshot(), 8);
+    index.addRows();
+
+    gallery.compact();
+    final GalleryIndex rebuilt = index.rebuild(gallery.snapshot());
+
+    assertEquals(gallery.size(), rebuilt.size());
+    assertMatchesExactScan(rebuilt, 1f);
+  }
+
+  @Test
+  public void indexPicksUpRowsOfNewerSnapshot() {
+    final GalleryIndex index = new HnswIndex(gallery.snapshot(), 8, 50);
+    index.addRows();
+    final float[] added = Galleries.gaussian(new Random(3), 1f);
+    gallery.register("added", added);
+
+    index.setRows(gallery.snapshot());
+    index.addRows();
+
+    final int row = index.findNearest(added, new float[1]);
+    assertEquals("added", gallery.getIdentity(row));
+    gallery.remove("added");
+    index.setRows(gallery.snapshot());
+    assertNotEquals("added", gallery.getIdentity(index.findNearest(added, new float[1])));
+  }
+
+  private void assertMatchesExactScan(final GalleryIndex index, final float minAgreement) {
+    index.addRows();
+    final EmbeddingGallery.Snapshot rows = gallery.snapshot();
+    final float[] distance = new float[1];
+    final DistanceHeap heap = new DistanceHeap(K, true);
+    final int[] identities = new int[K];
+    final float[] distances = new float[K];
+    int agreed = 0;
+    for (final float[] query : queries) {
+      final int exact = rows.getRowIdentity(rows.findNearest(kernel, query, distance));
+      final int row = index.findNearest(query, distance);
+      assertTrue(row >= 0);
+      final int identity = rows.getRowIdentity(row);
+      assertNotEquals(EmbeddingRows.DELETED, identity);
+      if (identity == exact) {
+        ++agreed;
+      }
+
+      heap.clear();
+      index.findNearest(query, K, heap);
+      assertEquals(K, heap.size());
+      final int n = heap.drainAscending(identities, distances);
+      for (int i = 0; i < n; ++i) {
+        assertTrue(gallery.getShotCount(rows.getIdentityName(identities[i])) > 0);
+        assertTrue(i == 0 || distances[i - 1] <= distances[i]);
+      }
+      assertEquals(identity, identities[0]);
+    }
+    assertTrue(
+            agreed + " of " + queries.size() + " agree", agreed >= minAgreement * queries.size());
+  }
+}
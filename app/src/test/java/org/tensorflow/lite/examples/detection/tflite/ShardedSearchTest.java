@@ -0,0 +1,73 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.detection.tflite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.After;
+import org.junit.Test;
+
+public class ShardedSearchTest {
+  private static final int K = 5;
+
+  private final ShardedSearch sharded = new ShardedSearch(3);
+
+  @After
+  public void tearDown() {
+    sharded.close();
+  }
+
+  @Test
+  public void findsSameRowsAsSingleScan() {
+    final EmbeddingGallery gallery = Galleries.clustered(100, 3, 1);
+    gallery.remove("id10");
+    gallery.remove("id50");
+    final EmbeddingGallery.Snapshot rows = gallery.snapshot();
+    final Random random = new Random(2);
+    for (final SimilarityClassifier.Metric metric : SimilarityClassifier.Metric.values()) {
+      final DistanceKernel kernel = DistanceKernel.create(metric, Galleries.DIM);
+      for (int q = 0; q < 20; ++q) {
+        final float[] query = Galleries.gaussian(random, 1f);
+        final float[] expected = new float[1];
+        final float[] actual = new float[1];
+        assertEquals(
+                rows.findNearest(kernel, query, expected),
+                sharded.findNearest(rows, kernel, query, actual));
+        assertEquals(expected[0], actual[0], 0f);
+
+        assertArrayEquals(topK(rows, kernel, query, false), topK(rows, kernel, query, true));
+      }
+    }
+  }
+
+  private int[] topK(
+          final EmbeddingGallery.Snapshot rows,
+          final DistanceKernel kernel,
+          final float[] query,
+          final boolean useShards) {
+    final DistanceHeap heap = new DistanceHeap(K, true);
+    if (useShards) {
+      sharded.findNearest(rows, kernel, query, K, heap);
+    } else {
+      rows.findNearest(kernel, query, K, heap);
+    }
+    final int[] identities = new int[K];
+    heap.drainAscending(identities, new float[K]);
+    return identities;
+  }
+}